@@ -107,10 +107,11 @@ public class GilliganService {
 		return commandLineConfig;
 	}
 
-	public HistoryResponse history(String releaseName, int max) {
+	public HistoryResponse history(String releaseName, int max, int offset) {
 		HistoryRequest historyRequest = new HistoryRequest();
 		historyRequest.setName(releaseName);
 		historyRequest.setMax(max);
+		historyRequest.setOffset(offset);
 		return gilliganClient.history(historyRequest);
 
 	}
@@ -16,14 +16,20 @@
 
 package org.springframework.cloud.skipper.client;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.InputStream;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
 
 import org.springframework.beans.factory.config.YamlPropertiesFactoryBean;
+import org.springframework.core.CollectionFactory;
 import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
 import org.springframework.util.StringUtils;
 
@@ -32,6 +38,9 @@ import org.springframework.util.StringUtils;
  */
 public abstract class YamlUtils {
 
+	private static final ThreadLocal<Yaml> yamlParser = ThreadLocal
+			.withInitial(() -> new Yaml(new StrictMapConstructor()));
+
 	public static Properties getProperties(File file) {
 		YamlPropertiesFactoryBean yaml = new YamlPropertiesFactoryBean();
 		Resource resource = new FileSystemResource(file);
@@ -51,24 +60,90 @@ public abstract class YamlUtils {
 	 * @return properties object containing contents of YAML file
 	 */
 	public static Properties getProperties(String yamlString) {
-		YamlPropertiesFactoryBean yaml = new YamlPropertiesFactoryBean();
+		Properties values = CollectionFactory.createStringAdaptingProperties();
+		values.putAll(getFlattenedMap(yamlString));
+		return values;
+	}
 
-		Properties values;
+	/**
+	 * Return the flattened contents of a String that contains YAML, with the same keys and
+	 * values as {@link #getProperties(String)} but without building a {@link Properties}
+	 * object. Nested maps are flattened to dotted paths and collection elements to indexed
+	 * paths, for example {@code spring.cloud.deployer[0].name}.
+	 * @param yamlString String that contains YAML
+	 * @return a new map of the flattened contents in document order
+	 */
+	public static Map<String, Object> getFlattenedMap(String yamlString) {
+		Map<String, Object> values = new LinkedHashMap<>();
 		if (StringUtils.hasText(yamlString)) {
-			try (InputStream is = new ByteArrayInputStream(yamlString.getBytes())) {
-				yaml.setResources(new InputStreamResource(is));
-				yaml.afterPropertiesSet();
-				values = yaml.getObject();
+			try {
+				for (Object document : yamlParser.get().loadAll(yamlString)) {
+					if (document instanceof Map) {
+						flatten(values, (Map<?, ?>) document, null);
+					}
+					else if (document != null) {
+						flatten(values, "document", document);
+					}
+				}
 			}
 			catch (Exception e) {
 				throw new IllegalArgumentException(
 						"Could not convert YAML to properties object from string " + yamlString, e);
 			}
 		}
+		return values;
+	}
+
+	private static void flatten(Map<String, Object> values, Map<?, ?> source, String path) {
+		for (Map.Entry<?, ?> entry : source.entrySet()) {
+			String key = entry.getKey() instanceof CharSequence ? entry.getKey().toString()
+					: "[" + entry.getKey() + "]";
+			if (path != null) {
+				key = key.startsWith("[") ? path + key : path + "." + key;
+			}
+			flatten(values, key, entry.getValue());
+		}
+	}
+
+	private static void flatten(Map<String, Object> values, String key, Object value) {
+		if (value instanceof Map) {
+			flatten(values, (Map<?, ?>) value, key);
+		}
+		else if (value instanceof Collection) {
+			int index = 0;
+			for (Object element : (Collection<?>) value) {
+				flatten(values, key + "[" + index++ + "]", element);
+			}
+		}
 		else {
-			values = new Properties();
+			values.put(key, value != null ? value : "");
 		}
-		return values;
+	}
 
+	/**
+	 * Rejects duplicate keys, like the constructor of {@link YamlPropertiesFactoryBean},
+	 * and only constructs standard YAML types.
+	 */
+	private static class StrictMapConstructor extends SafeConstructor {
+
+		@Override
+		protected Map<Object, Object> createDefaultMap() {
+			Map<Object, Object> delegate = super.createDefaultMap();
+			return new AbstractMap<Object, Object>() {
+
+				@Override
+				public Object put(Object key, Object value) {
+					if (delegate.containsKey(key)) {
+						throw new IllegalStateException("Duplicate key: " + key);
+					}
+					return delegate.put(key, value);
+				}
+
+				@Override
+				public Set<Entry<Object, Object>> entrySet() {
+					return delegate.entrySet();
+				}
+			};
+		}
 	}
 }
@@ -27,6 +27,9 @@ public class HistoryRequest {
 	// The maximum number of releases to include.
 	private int max;
 
+	// The number of most recent releases to skip.
+	private int offset;
+
 	public HistoryRequest() {
 	}
 
@@ -45,4 +48,12 @@ public class HistoryRequest {
 	public void setMax(int max) {
 		this.max = max;
 	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public void setOffset(int offset) {
+		this.offset = offset;
+	}
 }
@@ -45,6 +45,9 @@ public class Metadata {
 	// The URL to a relevant project page, git repo, or contact person
 	private String home;
 
+	// The name of the template engine, mustache if not set
+	private String engine;
+
 	public Metadata() {
 	}
 
@@ -95,4 +98,12 @@ public class Metadata {
 	public void setHome(String home) {
 		this.home = home;
 	}
+
+	public String getEngine() {
+		return engine;
+	}
+
+	public void setEngine(String engine) {
+		this.engine = engine;
+	}
 }
@@ -16,7 +16,12 @@
 
 package org.springframework.cloud.skipper.rpc.domain;
 
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
 import org.springframework.data.redis.core.RedisHash;
 
 /**
@@ -38,14 +43,25 @@ public class Release {
 
 	private Info info;
 
+	// The chart, config and manifest are stored apart from the release metadata
+	// and loaded on demand.
+	@Transient
 	private Chart chart;
 
 	// Config is the set of extra Values added to the chart.
 	// These values override the default values inside of the chart.
+	@Transient
 	private Config config;
 
+	@Transient
 	private String manifest;
 
+	// The manifest parsed into deployments, kept while the release is in memory so the
+	// manifest is parsed once.
+	@Transient
+	@JsonIgnore
+	private List<DeploymentKind> deploymentKinds;
+
 	private int version;
 
 	public Release() {
@@ -92,6 +108,24 @@ public class Release {
 
 	public void setManifest(String manifest) {
 		this.manifest = manifest;
+		this.deploymentKinds = null;
+	}
+
+	/**
+	 * Return the deployments parsed from the manifest.
+	 * @return the deployments, or {@literal null} if the manifest was not parsed yet
+	 */
+	public List<DeploymentKind> getDeploymentKinds() {
+		return deploymentKinds;
+	}
+
+	/**
+	 * Set the deployments parsed from the current manifest. Setting a new manifest clears
+	 * them.
+	 * @param deploymentKinds the parsed deployments
+	 */
+	public void setDeploymentKinds(List<DeploymentKind> deploymentKinds) {
+		this.deploymentKinds = deploymentKinds;
 	}
 
 	public int getVersion() {
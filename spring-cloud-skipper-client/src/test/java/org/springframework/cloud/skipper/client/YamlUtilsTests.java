@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import org.springframework.beans.factory.config.YamlPropertiesFactoryBean;
+import org.springframework.core.io.InputStreamResource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Mark Pollack
+ */
+public class YamlUtilsTests {
+
+	@Test
+	public void testSameKeysAndValuesAsYamlPropertiesFactoryBean() throws Exception {
+		assertSameProperties(new String(Files.readAllBytes(new File("src/test/resources/ticktock/values.yml").toPath()),
+				StandardCharsets.UTF_8));
+		assertSameProperties("app:\n  name: log\n  replicas: 2\n  enabled: true\n  ratio: 0.5\n  empty:\n");
+		assertSameProperties("ports: [8080, 8081]\nnone: []\nnested:\n  - [a, b]\n  - name: x\n    env: {A: 1}\n  -\n");
+		assertSameProperties("1: one\nmap:\n  2: two\n  key: {3: three}\n");
+		assertSameProperties("count: 1\n---\ncount: 2\nname: second\n---\n");
+		assertSameProperties("just a scalar");
+		assertSameProperties("- first\n- second\n");
+	}
+
+	@Test
+	public void testEmptyYaml() {
+		assertThat(YamlUtils.getProperties("")).isEmpty();
+		assertThat(YamlUtils.getFlattenedMap(null)).isEmpty();
+	}
+
+	@Test
+	public void testGetPropertyAdaptsValuesToStrings() {
+		Properties properties = YamlUtils.getProperties("deployment:\n  count: 3\n");
+		assertThat(properties.get("deployment.count")).isEqualTo(3);
+		assertThat(properties.getProperty("deployment.count")).isEqualTo("3");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDuplicateKeysRejected() {
+		YamlUtils.getFlattenedMap("name: a\nname: b\n");
+	}
+
+	private void assertSameProperties(String yamlString) {
+		YamlPropertiesFactoryBean yaml = new YamlPropertiesFactoryBean();
+		yaml.setResources(new InputStreamResource(new ByteArrayInputStream(yamlString.getBytes(StandardCharsets.UTF_8))));
+		Properties expected = yaml.getObject();
+		assertThat(YamlUtils.getProperties(yamlString)).isEqualTo(expected);
+		assertThat(YamlUtils.getFlattenedMap(yamlString)).isEqualTo(expected);
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Loads the test charts and manifests the benchmarks run on.
+ *
+ * @author Mark Pollack
+ */
+public abstract class BenchmarkUtils {
+
+	/**
+	 * Return the content of a test resource.
+	 * @param path the class path of the resource
+	 * @return the content of the resource
+	 * @throws IOException if the resource can not be read
+	 */
+	public static String load(String path) throws IOException {
+		try (InputStream stream = new ClassPathResource(path).getInputStream()) {
+			return StreamUtils.copyToString(stream, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.springframework.cloud.skipper.client.YamlUtils;
+import org.springframework.cloud.skipper.gilligan.service.MustacheTemplateEngine;
+import org.springframework.cloud.skipper.gilligan.service.SimpleTemplateEngine;
+import org.springframework.cloud.skipper.gilligan.service.TemplateEngine;
+
+/**
+ * Compiles and executes the templates of the ticktock test chart with the Mustache and
+ * the simple {@link TemplateEngine}, using the values of the chart as the model. The
+ * {@code escaped} values append a query string with characters both engines HTML escape
+ * to every value of the chart.
+ *
+ * @author Mark Pollack
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TemplateEngineBenchmark {
+
+	@Param({ MustacheTemplateEngine.NAME, SimpleTemplateEngine.NAME })
+	private String engineName;
+
+	@Param({ "ticktock", "escaped" })
+	private String values;
+
+	private TemplateEngine engine;
+
+	private String[] templates;
+
+	private List<TemplateEngine.CompiledTemplate> compiledTemplates;
+
+	private Properties model;
+
+	@Setup
+	public void setUp() throws IOException {
+		engine = engineName.equals(SimpleTemplateEngine.NAME) ? new SimpleTemplateEngine()
+				: new MustacheTemplateEngine();
+		templates = new String[] { BenchmarkUtils.load("/ticktock/charts/log/templates/log.yml"),
+				BenchmarkUtils.load("/ticktock/charts/time/templates/time.yml") };
+		compiledTemplates = compile();
+		model = new Properties();
+		for (Map.Entry<String, Object> value : YamlUtils.getFlattenedMap(BenchmarkUtils.load("/ticktock/values.yml"))
+				.entrySet()) {
+			model.put(value.getKey(), values.equals("escaped") ? value.getValue() + "?a=<1>&b='2'" : value.getValue());
+		}
+	}
+
+	@Benchmark
+	public List<TemplateEngine.CompiledTemplate> compile() {
+		List<TemplateEngine.CompiledTemplate> compiled = new ArrayList<>(templates.length);
+		for (String template : templates) {
+			compiled.add(engine.compile(template));
+		}
+		return compiled;
+	}
+
+	@Benchmark
+	public List<String> execute() {
+		List<String> manifests = new ArrayList<>(compiledTemplates.size());
+		for (TemplateEngine.CompiledTemplate compiledTemplate : compiledTemplates) {
+			manifests.add(compiledTemplate.execute(model));
+		}
+		return manifests;
+	}
+}
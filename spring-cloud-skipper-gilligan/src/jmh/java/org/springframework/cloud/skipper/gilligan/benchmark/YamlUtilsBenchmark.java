@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.springframework.beans.factory.config.YamlPropertiesFactoryBean;
+import org.springframework.cloud.skipper.client.YamlUtils;
+import org.springframework.core.io.ByteArrayResource;
+
+/**
+ * Flattens values YAML with {@link YamlUtils#getFlattenedMap(String)} and, as the
+ * baseline, with the {@link YamlPropertiesFactoryBean} it replaced. The {@code ticktock}
+ * values are those of the test chart, {@code wide} has 1000 applications with 5 values
+ * each.
+ *
+ * @author Mark Pollack
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class YamlUtilsBenchmark {
+
+	@Param({ "ticktock", "wide" })
+	private String values;
+
+	private String yaml;
+
+	@Setup
+	public void setUp() throws IOException {
+		if (values.equals("ticktock")) {
+			yaml = BenchmarkUtils.load("/ticktock/values.yml");
+		}
+		else {
+			StringBuilder wide = new StringBuilder("resources:\n");
+			for (int i = 0; i < 1000; i++) {
+				wide.append("  app").append(i).append(":\n")
+						.append("    resourceGroupAndName: maven://org.springframework.cloud.stream.app:app-")
+						.append(i).append("\n    version: 1.2.0.RELEASE\n    count: ").append(i)
+						.append("\n    enabled: true\n    tags: [a, b]\n");
+			}
+			yaml = wide.toString();
+		}
+	}
+
+	@Benchmark
+	public Map<String, Object> flattenedMap() {
+		return YamlUtils.getFlattenedMap(yaml);
+	}
+
+	@Benchmark
+	public Properties propertiesFactoryBean() {
+		YamlPropertiesFactoryBean factoryBean = new YamlPropertiesFactoryBean();
+		factoryBean.setResources(new ByteArrayResource(yaml.getBytes(StandardCharsets.UTF_8)));
+		return factoryBean.getObject();
+	}
+}
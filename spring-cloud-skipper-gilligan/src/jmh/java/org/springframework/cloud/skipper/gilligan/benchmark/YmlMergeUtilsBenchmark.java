@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.springframework.cloud.skipper.gilligan.util.YmlMergeUtils;
+
+/**
+ * Merges override values into chart values with {@link YmlMergeUtils}, without and with
+ * reporting the changes. The {@code wide} documents have 1000 applications, of which
+ * every tenth is overridden, the {@code deep} documents nest a single value 1000 maps
+ * deep.
+ *
+ * @author Mark Pollack
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class YmlMergeUtilsBenchmark {
+
+	@Param({ "wide", "deep" })
+	private String documents;
+
+	private Map<String, Object> values;
+
+	private Map<String, Object> overrides;
+
+	@Setup
+	public void setUp() {
+		if (documents.equals("wide")) {
+			values = new LinkedHashMap<>();
+			overrides = new LinkedHashMap<>();
+			for (int i = 0; i < 1000; i++) {
+				values.put("app" + i, application(1, "INFO"));
+				if (i % 10 == 0) {
+					overrides.put("app" + i, application(2, "DEBUG"));
+				}
+			}
+		}
+		else {
+			values = nested(1000, "INFO");
+			overrides = nested(1000, "DEBUG");
+		}
+	}
+
+	@Benchmark
+	public Map<String, Object> merge() {
+		return YmlMergeUtils.merge(values, overrides);
+	}
+
+	@Benchmark
+	public List<YmlMergeUtils.Change> mergeWithChanges() {
+		List<YmlMergeUtils.Change> changes = new ArrayList<>();
+		YmlMergeUtils.merge(values, overrides, changes);
+		return changes;
+	}
+
+	private static Map<String, Object> application(int count, String level) {
+		Map<String, Object> log = new LinkedHashMap<>();
+		log.put("level", level);
+		Map<String, Object> application = new LinkedHashMap<>();
+		application.put("count", count);
+		application.put("log", log);
+		application.put("hosts", Arrays.asList("a", "b"));
+		return application;
+	}
+
+	private static Map<String, Object> nested(int depth, String level) {
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("level", level);
+		for (int i = 0; i < depth; i++) {
+			Map<String, Object> parent = new LinkedHashMap<>();
+			parent.put("nested", map);
+			map = parent;
+		}
+		return map;
+	}
+}
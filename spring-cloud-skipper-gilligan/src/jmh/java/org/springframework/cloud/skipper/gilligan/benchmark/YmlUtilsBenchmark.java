@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.springframework.cloud.skipper.gilligan.util.YmlUtils;
+import org.springframework.cloud.skipper.rpc.domain.Deployment;
+import org.springframework.cloud.skipper.rpc.domain.DeploymentKind;
+
+/**
+ * Parses the deployments of a manifest with {@link YmlUtils} and, as the baseline, with
+ * a new {@link YAMLMapper} for every manifest as before the reader was shared. The
+ * manifest repeats the deployments of {@code multipleDeployments.yml} {@code copies}
+ * times. {@code firstDeployment} only reads up to the first deployment, which the lazy
+ * iterator does without parsing the rest of the manifest.
+ *
+ * @author Mark Pollack
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class YmlUtilsBenchmark {
+
+	@Param({ "1", "1000" })
+	private int copies;
+
+	private String manifest;
+
+	@Setup
+	public void setUp() throws IOException {
+		String deployments = BenchmarkUtils.load("/deserialization/multipleDeployments.yml");
+		StringBuilder manifest = new StringBuilder(deployments.length() * copies);
+		for (int i = 0; i < copies; i++) {
+			manifest.append(deployments);
+		}
+		this.manifest = manifest.toString();
+	}
+
+	@Benchmark
+	public List<Deployment> unmarshallDeployments() {
+		return YmlUtils.unmarshallDeployments(manifest);
+	}
+
+	@Benchmark
+	public List<Deployment> newMapper() throws IOException {
+		List<Deployment> deployments = new ArrayList<>();
+		MappingIterator<DeploymentKind> it = new YAMLMapper().readerFor(DeploymentKind.class).readValues(manifest);
+		while (it.hasNextValue()) {
+			deployments.add(it.nextValue().getDeployment());
+		}
+		return deployments;
+	}
+
+	@Benchmark
+	public Deployment firstDeployment() {
+		Iterator<Deployment> deployments = YmlUtils.iterateDeployments(manifest);
+		return deployments.next();
+	}
+}
@@ -24,12 +24,15 @@ import org.springframework.cloud.deployer.resource.docker.DockerResourceLoader;
 import org.springframework.cloud.deployer.resource.maven.MavenProperties;
 import org.springframework.cloud.deployer.resource.maven.MavenResourceLoader;
 import org.springframework.cloud.deployer.resource.support.DelegatingResourceLoader;
+import org.springframework.cloud.skipper.gilligan.repository.ReleaseCache;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.io.ResourceLoader;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 
 /**
  * @author Mark Pollack
@@ -51,6 +54,17 @@ public class GilliganConfiguration {
 		return template;
 	}
 
+	@Bean
+	RedisMessageListenerContainer releaseCacheListenerContainer(RedisConnectionFactory connectionFactory,
+			ReleaseCache releaseCache) {
+
+		RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+		container.setConnectionFactory(connectionFactory);
+		container.addMessageListener(releaseCache, new ChannelTopic(ReleaseCache.INVALIDATION_CHANNEL));
+
+		return container;
+	}
+
 	@Bean
 	public MavenProperties mavenProperties() {
 		return new MavenConfigurationProperties();
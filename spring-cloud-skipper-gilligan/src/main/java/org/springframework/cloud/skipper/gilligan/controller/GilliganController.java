@@ -23,6 +23,7 @@ import org.springframework.cloud.skipper.gilligan.repository.ReleaseRepository;
 import org.springframework.cloud.skipper.gilligan.service.ReleaseService;
 import org.springframework.cloud.skipper.rpc.*;
 import org.springframework.cloud.skipper.rpc.domain.*;
+import org.springframework.dao.ConcurrencyFailureException;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.*;
 
@@ -82,7 +83,8 @@ public class GilliganController {
 	@RequestMapping("/history")
 	public HistoryResponse history(@RequestBody HistoryRequest historyRequest) {
 
-		Release[] releases = releaseService.history(historyRequest.getName(), historyRequest.getMax());
+		Release[] releases = releaseService.history(historyRequest.getName(), historyRequest.getMax(),
+				historyRequest.getOffset());
 
 		HistoryResponse historyResponse = new HistoryResponse();
 		historyResponse.setReleases(releases);
@@ -108,6 +110,12 @@ public class GilliganController {
 		return selectorResponse;
 	}
 
+	@ExceptionHandler(ConcurrencyFailureException.class)
+	@ResponseStatus(HttpStatus.CONFLICT)
+	public String conflict(ConcurrencyFailureException e) {
+		return e.getMessage();
+	}
+
 	private Release prepareRelease(InstallReleaseRequest installReleaseRequest) {
 		Release release = createInitialReleaseObject(installReleaseRequest);
 		Config configValues = installReleaseRequest.getConfigValues();
@@ -16,7 +16,9 @@
 
 package org.springframework.cloud.skipper.gilligan.repository;
 
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 import org.springframework.cloud.skipper.rpc.domain.Deployment;
 import org.springframework.cloud.skipper.rpc.domain.Release;
@@ -26,9 +28,110 @@ import org.springframework.cloud.skipper.rpc.domain.Release;
  */
 public interface CustomReleaseRepository {
 
+	/**
+	 * Store the release and maintain the per release name version index used by
+	 * {@link #findLatestRelease(String)} and {@link #findByNameAndVersion(String, int)}.
+	 * Inside {@link #doInUnitOfWork(Supplier)} saving a release that is already stored is
+	 * deferred until the unit of work ends.
+	 * @param release the release to store
+	 * @return the stored release
+	 * @throws org.springframework.dao.OptimisticLockingFailureException if a new release
+	 * does not directly follow the current version of its name, including a first version
+	 * of a name that already has releases
+	 */
+	<S extends Release> S save(S release);
+
+	/**
+	 * Immediately write only the deployment id and info of a stored release, also inside
+	 * a unit of work. Used for intermediate states that must be visible before the
+	 * operation completes.
+	 * @param release the release whose status to store
+	 * @return the release
+	 */
+	Release saveStatus(Release release);
+
+	/**
+	 * Run a release operation as a unit of work. Saves of already stored releases made by
+	 * the operation are tracked and each release is written once when the operation ends,
+	 * also if it failed. Whether those writes are batched depends on the
+	 * {@link ReleaseRecordStore}, the hash format writes one release after the other. New
+	 * releases are still inserted immediately. Nested calls join the current unit of
+	 * work.
+	 * @param operation the release operation
+	 * @return the result of the operation
+	 */
+	<T> T doInUnitOfWork(Supplier<T> operation);
+
+	/**
+	 * Find the release record with the given id, in the configured
+	 * {@link ReleaseRecordStore} format.
+	 * @param id the release id
+	 * @return the release or {@code null} if not found
+	 */
+	Release findOne(String id);
+
+	/**
+	 * Populate the chart, config and manifest of a release. Releases returned by the
+	 * repository only carry release metadata, these larger values are stored separately
+	 * when the release is first saved and are loaded by this method only.
+	 * @param release a release returned by the repository
+	 * @return the same release with its chart, config and manifest set
+	 */
+	Release loadPayload(Release release);
+
 	Release findLatestRelease(String releaseName);
 
 	Release findByNameAndVersion(String releaseName, int version);
 
+	/**
+	 * Return a page of the revisions of a release, read from the version index. Pages are
+	 * counted back from the latest revision and the revisions in a page are ordered by
+	 * ascending version. Only release metadata is loaded.
+	 * @param releaseName the name of the release
+	 * @param offset the number of most recent revisions to skip
+	 * @param max the maximum number of revisions to return, all remaining revisions if 0
+	 * @return the requested revisions
+	 */
+	List<Release> findHistory(String releaseName, int offset, int max);
+
+	/**
+	 * Find the deployments of all stored revisions that carry every label of the
+	 * selector. A deployment that lacks one of the selector labels does not match.
+	 * @param selectorMap the label keys and values to match
+	 * @return the matching deployments, none for an empty selector
+	 */
 	Deployment[] select(Map<String, String> selectorMap);
+
+	/**
+	 * Return the deployments of a stored release as they were indexed when it was saved,
+	 * without parsing its manifest.
+	 * @param releaseId the release id
+	 * @return the deployments in manifest order, none if the release has no manifest or
+	 * was reduced to its metadata
+	 */
+	List<Deployment> findDeployments(String releaseId);
+
+	/**
+	 * Reduce all but the given number of most recent revisions of a release to their
+	 * metadata record, removing their payload and their deployments from the label
+	 * index. Blobs that no other revision refers to are deleted with the payload.
+	 * Revisions reduced by an earlier call are not visited again.
+	 * @param releaseName the name of the release
+	 * @param revisionsToKeep the number of most recent revisions to keep in full
+	 * @return the revisions reduced by this call
+	 */
+	List<Release> pruneRevisions(String releaseName, int revisionsToKeep);
+
+	/**
+	 * Move the chart, config and manifest of releases stored before they were kept apart
+	 * from the release record out of the release hash into the
+	 * {@link ReleasePayloadStore}, and add the deployments of their manifest to the label
+	 * index. Releases missing from the version index of their name are added to it.
+	 * Releases that need neither are skipped. The references to the payload blobs are
+	 * counted again first, deleting the blobs nothing refers to. Once all releases were
+	 * visited a marker key records the current storage layout, and later calls return
+	 * without visiting any release.
+	 * @return the number of releases that were backfilled
+	 */
+	int backfillLegacyReleases();
 }
@@ -13,43 +13,417 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.springframework.cloud.skipper.gilligan.repository;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.cloud.skipper.gilligan.util.LineDeltaUtils;
 import org.springframework.cloud.skipper.rpc.domain.Release;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
 import org.springframework.util.StreamUtils;
 
 /**
+ * Archives release manifests under {@code <gilligan.manifests.directory>/<name>-v<version>}
+ * from a background thread, so archiving does not add disk latency to the deploy path.
+ * Store and delete requests are queued and written in batches, where only the last
+ * request for a directory is applied. A manifest is written to a temporary file that is
+ * then renamed over {@code manifest.yml}, or {@code manifest.yml.gz} when
+ * {@code gilligan.manifests.compress} is set, so readers never see a partial manifest.
+ * Setting {@code gilligan.manifests.fsync} forces each manifest to disk before the rename.
+ *
+ * Like in the {@link ReleasePayloadStore}, a manifest is archived as a line delta against
+ * the manifest of the previous version in {@code manifest.delta} instead, whenever the
+ * delta is less than half the size of the manifest and the chain of deltas stays shorter
+ * than {@value ReleasePayloadStore#SNAPSHOT_INTERVAL}. Before the manifest of a version is
+ * deleted or replaced, the manifest of the next version is written in full if it is a
+ * delta against it. {@link #load(Release)} reads a manifest back.
+ *
+ * At most {@code gilligan.manifests.queue-capacity} requests are queued. A store or delete
+ * waits for room in the queue for up to {@code gilligan.manifests.timeout} milliseconds,
+ * so a slow disk slows down releases instead of filling the heap, and fails with an
+ * {@link IllegalStateException} after that or once the writer thread has stopped. Write
+ * failures are reported by the next {@link #flush()}.
+ *
+ * The number of queued requests is published as the {@code gilligan.manifests.queue}
+ * metric, the number of failed writes as {@code gilligan.manifests.failures}.
+ *
  * @author Mark Pollack
  */
 @Component
-public class FileManifestRepository implements ManifestRepository {
+public class FileManifestRepository implements ManifestRepository, PublicMetrics {
+
+	private static final Logger log = LoggerFactory.getLogger(FileManifestRepository.class);
+
+	private static final int MAX_BATCH_SIZE = 64;
+
+	private static final String MANIFEST_FILE = "manifest.yml";
+
+	private static final String DELTA_FILE = "manifest.delta";
 
-	private final String homeDir = System.getProperty("user.home");
+	private static final String COMPRESSED_SUFFIX = ".gz";
+
+	private final File manifestsDir;
+
+	private final boolean compress;
+
+	private final boolean fsync;
+
+	private final long timeout;
+
+	private final BlockingQueue<ManifestRequest> queue;
+
+	private final Thread writer;
+
+	private final AtomicLong failureCount = new AtomicLong();
+
+	private volatile boolean running = true;
+
+	/**
+	 * The first write failure since the last flush, only accessed by the writer thread.
+	 */
+	private Exception pendingFailure;
+
+	@Autowired
+	public FileManifestRepository(
+			@Value("${gilligan.manifests.directory:${user.home}/manifests}") String manifestsDir,
+			@Value("${gilligan.manifests.compress:false}") boolean compress,
+			@Value("${gilligan.manifests.fsync:false}") boolean fsync,
+			@Value("${gilligan.manifests.queue-capacity:1024}") int queueCapacity,
+			@Value("${gilligan.manifests.timeout:30000}") long timeout) {
+		this.manifestsDir = new File(manifestsDir);
+		this.compress = compress;
+		this.fsync = fsync;
+		this.timeout = timeout;
+		this.queue = new LinkedBlockingQueue<>(queueCapacity);
+		this.writer = new CustomizableThreadFactory("manifest-writer-").newThread(this::writeManifests);
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
 
 	@Override
 	public void store(Release release) {
-		final File releaseDir = new File(homeDir + File.separator + "manifests" + File.separator
-				+ release.getName() + "-v"
-				+ release.getVersion());
-		releaseDir.mkdirs();
-		File manifestFile = new File(releaseDir, "manifest.yml");
-		writeText(manifestFile, release.getManifest());
+		enqueue(new ManifestRequest(release.getName(), release.getVersion(),
+				releaseDir(release.getName(), release.getVersion()), release.getManifest(), null));
+	}
+
+	@Override
+	public void delete(Release release) {
+		enqueue(new ManifestRequest(release.getName(), release.getVersion(),
+				releaseDir(release.getName(), release.getVersion()), null, null));
+	}
+
+	/**
+	 * Read the archived manifest of a release, applying its chain of deltas. Only
+	 * requests written so far are seen, see {@link #flush()}.
+	 * @param release the release
+	 * @return the manifest, or {@literal null} if it is not archived or the manifest it is
+	 * a delta against was deleted meanwhile
+	 * @throws IllegalStateException if the manifest could not be read
+	 */
+	public String load(Release release) {
+		try {
+			ArchivedManifest manifest = readManifest(release.getName(), release.getVersion());
+			return manifest != null ? manifest.manifest : null;
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not read the manifest of " + releaseDir(release.getName(),
+					release.getVersion()), e);
+		}
+	}
+
+	/**
+	 * Wait until all requests queued so far have been written.
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws IllegalStateException if a request queued since the last flush could not
+	 * be written, or the requests were not written within the timeout
+	 */
+	public void flush() throws InterruptedException {
+		ManifestRequest flush = new ManifestRequest(null, 0, null, null, new CountDownLatch(1));
+		enqueue(flush);
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!flush.written.await(100, TimeUnit.MILLISECONDS)) {
+			if (!writer.isAlive() || System.currentTimeMillis() >= deadline) {
+				throw new IllegalStateException("Manifests were not written within " + timeout + " ms");
+			}
+		}
+		if (flush.failure != null) {
+			throw new IllegalStateException("Could not archive manifests in " + manifestsDir, flush.failure);
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		return Arrays.asList(new Metric<Number>("gilligan.manifests.queue", queue.size()),
+				new Metric<Number>("gilligan.manifests.failures", failureCount.get()));
+	}
+
+	@PreDestroy
+	public void shutdown() throws InterruptedException {
+		try {
+			flush();
+		}
+		finally {
+			running = false;
+			writer.interrupt();
+			writer.join(timeout);
+		}
+	}
+
+	private void enqueue(ManifestRequest request) {
+		if (!writer.isAlive()) {
+			throw new IllegalStateException("Manifest writer has stopped");
+		}
+		try {
+			if (!queue.offer(request, timeout, TimeUnit.MILLISECONDS)) {
+				throw new IllegalStateException("Manifest queue still full after " + timeout + " ms");
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while queueing manifest", e);
+		}
+	}
+
+	private void writeManifests() {
+		List<ManifestRequest> batch = new ArrayList<>();
+		while (running) {
+			try {
+				batch.add(queue.take());
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+			Map<File, ManifestRequest> latestRequests = new LinkedHashMap<>();
+			for (ManifestRequest request : batch) {
+				if (request.releaseDir != null) {
+					latestRequests.remove(request.releaseDir);
+					latestRequests.put(request.releaseDir, request);
+				}
+			}
+			for (ManifestRequest request : latestRequests.values()) {
+				apply(request);
+			}
+			for (ManifestRequest request : batch) {
+				if (request.written != null) {
+					request.failure = pendingFailure;
+					pendingFailure = null;
+					request.written.countDown();
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	private void apply(ManifestRequest request) {
+		try {
+			detachNextVersion(request.name, request.version);
+			if (request.manifest == null) {
+				FileSystemUtils.deleteRecursively(request.releaseDir);
+			}
+			else {
+				storeManifest(request.name, request.version, request.manifest);
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			log.error("Could not archive manifest in " + request.releaseDir, e);
+			failureCount.incrementAndGet();
+			if (pendingFailure == null) {
+				pendingFailure = e;
+			}
+			else {
+				pendingFailure.addSuppressed(e);
+			}
+		}
+	}
+
+	private void storeManifest(String name, int version, String manifest) throws IOException {
+		ArchivedManifest previous = readManifest(name, version - 1);
+		if (previous != null && previous.depth + 1 < ReleasePayloadStore.SNAPSHOT_INTERVAL) {
+			String delta = LineDeltaUtils.diff(previous.manifest, manifest);
+			if (delta.length() < manifest.length() / 2) {
+				writeFile(releaseDir(name, version), DELTA_FILE, delta);
+				return;
+			}
+		}
+		writeFile(releaseDir(name, version), MANIFEST_FILE, manifest);
+	}
 
+	/**
+	 * Write the manifest of the next version in full if it is a delta against the
+	 * manifest of the given version, which is about to be deleted or replaced.
+	 */
+	private void detachNextVersion(String name, int version) throws IOException {
+		File nextReleaseDir = releaseDir(name, version + 1);
+		if (!exists(nextReleaseDir, MANIFEST_FILE) && exists(nextReleaseDir, DELTA_FILE)) {
+			ArchivedManifest manifest = readManifest(name, version + 1);
+			if (manifest != null) {
+				writeFile(nextReleaseDir, MANIFEST_FILE, manifest.manifest);
+			}
+		}
 	}
 
-	private void writeText(final File target, final String body) {
-		try (OutputStream stream = new FileOutputStream(target, false)) {
-			StreamUtils.copy(body, Charset.forName("UTF-8"), stream);
+	/**
+	 * Read a manifest by following its chain of deltas back to a full manifest.
+	 * @return the manifest, or {@literal null} if the chain is incomplete
+	 */
+	private ArchivedManifest readManifest(String name, int version) throws IOException {
+		List<String> deltas = new ArrayList<>();
+		String manifest = null;
+		int depthLimit = ReleasePayloadStore.SNAPSHOT_INTERVAL;
+		for (int v = version; manifest == null && v > 0 && deltas.size() < depthLimit; v--) {
+			manifest = readFile(releaseDir(name, v), MANIFEST_FILE);
+			if (manifest == null) {
+				String delta = readFile(releaseDir(name, v), DELTA_FILE);
+				if (delta == null) {
+					return null;
+				}
+				deltas.add(delta);
+			}
+		}
+		if (manifest == null) {
+			return null;
+		}
+		for (int i = deltas.size() - 1; i >= 0; i--) {
+			manifest = LineDeltaUtils.apply(manifest, deltas.get(i));
+		}
+		return new ArchivedManifest(manifest, deltas.size());
+	}
+
+	private boolean exists(File releaseDir, String fileName) {
+		return new File(releaseDir, fileName).isFile() || new File(releaseDir, fileName + COMPRESSED_SUFFIX).isFile();
+	}
+
+	private String readFile(File releaseDir, String fileName) throws IOException {
+		File file = new File(releaseDir, fileName);
+		File compressedFile = new File(releaseDir, fileName + COMPRESSED_SUFFIX);
+		if (!file.isFile() && !compressedFile.isFile()) {
+			return null;
+		}
+		try (InputStream stream = file.isFile() ? Files.newInputStream(file.toPath())
+				: new GZIPInputStream(Files.newInputStream(compressedFile.toPath()))) {
+			return StreamUtils.copyToString(stream, StandardCharsets.UTF_8);
 		}
-		catch (final Exception e) {
-			throw new IllegalStateException("Cannot write file " + target, e);
+	}
+
+	/**
+	 * Write the full manifest or delta file of a release, removing the one it replaces.
+	 */
+	private void writeFile(File releaseDir, String baseName, String content) throws IOException {
+		Files.createDirectories(releaseDir.toPath());
+		String fileName = compress ? baseName + COMPRESSED_SUFFIX : baseName;
+		Path tempFile = new File(releaseDir, fileName + ".tmp").toPath();
+		try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			OutputStream stream = Channels.newOutputStream(channel);
+			if (compress) {
+				stream = new GZIPOutputStream(stream);
+			}
+			// Encoded while it is written, without a second copy of the manifest as bytes
+			Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+			writer.write(content);
+			writer.flush();
+			if (compress) {
+				((GZIPOutputStream) stream).finish();
+			}
+			if (fsync) {
+				channel.force(true);
+			}
+		}
+		Files.move(tempFile, new File(releaseDir, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		for (String otherBaseName : Arrays.asList(MANIFEST_FILE, DELTA_FILE)) {
+			for (String otherFileName : Arrays.asList(otherBaseName, otherBaseName + COMPRESSED_SUFFIX)) {
+				if (!otherFileName.equals(fileName)) {
+					Files.deleteIfExists(new File(releaseDir, otherFileName).toPath());
+				}
+			}
+		}
+	}
+
+	private File releaseDir(String name, int version) {
+		return new File(manifestsDir, name + "-v" + version);
+	}
+
+	/**
+	 * A manifest read from the archive, with the number of deltas applied to read it.
+	 */
+	private static class ArchivedManifest {
+
+		private final String manifest;
+
+		private final int depth;
+
+		ArchivedManifest(String manifest, int depth) {
+			this.manifest = manifest;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * A queued manifest store, delete ({@code manifest} is {@literal null}) or flush
+	 * ({@code releaseDir} is {@literal null}) request.
+	 */
+	private static class ManifestRequest {
+
+		private final String name;
+
+		private final int version;
+
+		private final File releaseDir;
+
+		private final String manifest;
+
+		private final CountDownLatch written;
+
+		/**
+		 * The write failure reported to a flush request, set before it is released.
+		 */
+		private Exception failure;
+
+		ManifestRequest(String name, int version, File releaseDir, String manifest, CountDownLatch written) {
+			this.name = name;
+			this.version = version;
+			this.releaseDir = releaseDir;
+			this.manifest = manifest;
+			this.written = written;
 		}
 	}
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.skipper.gilligan.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.skipper.rpc.domain.Release;
+import org.springframework.data.keyvalue.core.KeyValueOperations;
+import org.springframework.data.redis.core.PartialUpdate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Stores release records as Spring Data Redis hashes, one hash field per property. The
+ * Spring Data Redis adapter can not write inside a pipeline, so {@link #saveAll} writes
+ * one record after the other.
+ *
+ * @author Mark Pollack
+ */
+@Component
+@ConditionalOnProperty(prefix = "gilligan", name = "release-format", havingValue = "hash", matchIfMissing = true)
+public class KeyValueReleaseRecordStore implements ReleaseRecordStore {
+
+	private final KeyValueOperations keyValueTemplate;
+
+	@Autowired
+	public KeyValueReleaseRecordStore(KeyValueOperations keyValueTemplate) {
+		this.keyValueTemplate = keyValueTemplate;
+	}
+
+	@Override
+	public void save(Release release) {
+		if (release.getId() == null) {
+			keyValueTemplate.insert(release);
+		}
+		else {
+			keyValueTemplate.update(release);
+		}
+	}
+
+	@Override
+	public void saveStatus(Release release) {
+		PartialUpdate<Release> update = PartialUpdate.newPartialUpdate(release.getId(), Release.class)
+				.set("info", release.getInfo());
+		if (release.getDeploymentId() != null) {
+			update = update.set("deploymentId", release.getDeploymentId());
+		}
+		keyValueTemplate.update(update);
+	}
+
+	@Override
+	public void saveAll(Collection<Release> releases) {
+		for (Release release : releases) {
+			save(release);
+		}
+	}
+
+	@Override
+	public void delete(String id) {
+		keyValueTemplate.delete(id, Release.class);
+	}
+
+	@Override
+	public Release findOne(String id) {
+		return keyValueTemplate.findById(id, Release.class);
+	}
+
+	@Override
+	public List<Release> findAll(Collection<String> ids) {
+		List<Release> releases = new ArrayList<>();
+		for (String id : ids) {
+			Release release = findOne(id);
+			if (release != null) {
+				releases.add(release);
+			}
+		}
+		return releases;
+	}
+}
@@ -24,4 +24,6 @@ import org.springframework.cloud.skipper.rpc.domain.Release;
 public interface ManifestRepository {
 
 	void store(Release release);
+
+	void delete(Release release);
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.repository;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.skipper.gilligan.util.LruMap;
+import org.springframework.cloud.skipper.rpc.domain.Release;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded in-process cache of release records, keyed by release name and version, that
+ * serves the latest and versioned release lookups without a round trip to Redis. Entries
+ * are kept serialized, so every hit returns a copy the caller is free to change. The
+ * number of entries is set with {@code gilligan.release-cache.size}, 0 disables the
+ * cache.
+ *
+ * Entries expire {@code gilligan.release-cache.time-to-live} milliseconds after they were
+ * loaded, 0 keeps them until they are evicted. This bounds how long a node serves a
+ * stale release when an invalidation message is lost, for example while its connection
+ * to Redis is reestablished.
+ *
+ * A write of a release evicts all entries of its name on this node and publishes
+ * {@code <node id>:<release name>} on {@link #INVALIDATION_CHANNEL}, which evicts them on
+ * every other Gilligan node using the same Redis. A node ignores its own messages. Changes
+ * made to Redis outside of Gilligan are not noticed.
+ *
+ * @author Mark Pollack
+ */
+@Component
+public class ReleaseCache implements MessageListener {
+
+	/**
+	 * The channel release names are published on when one of their releases changes.
+	 */
+	public static final String INVALIDATION_CHANNEL = "releases:invalidations";
+
+	/**
+	 * The version under which the latest release of a name is cached.
+	 */
+	public static final int LATEST_VERSION = 0;
+
+	private final String nodeId = UUID.randomUUID().toString();
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private final StringRedisTemplate redisTemplate;
+
+	private final int maxSize;
+
+	private final long timeToLive;
+
+	private final Map<String, Entry> entries;
+
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * The generation each release name was last evicted at, only kept while a load that
+	 * started before the eviction is in flight.
+	 */
+	private final Map<String, Long> evictedGenerations = new HashMap<>();
+
+	/**
+	 * The number of loads in flight by the generation they started at.
+	 */
+	private final TreeMap<Long, Integer> loadGenerations = new TreeMap<>();
+
+	private long clearedGeneration;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	@Autowired
+	public ReleaseCache(StringRedisTemplate redisTemplate,
+			@Value("${gilligan.release-cache.size:1000}") int maxSize,
+			@Value("${gilligan.release-cache.time-to-live:60000}") long timeToLive) {
+		this.redisTemplate = redisTemplate;
+		this.maxSize = maxSize;
+		this.timeToLive = timeToLive;
+		this.entries = new LruMap<>(maxSize);
+	}
+
+	/**
+	 * Return the cached release, loading and caching it on a miss. A release loaded while
+	 * its name is evicted is returned but not cached, as it may already be stale.
+	 * @param releaseName the name of the release
+	 * @param version the version of the release, or {@link #LATEST_VERSION}
+	 * @param loader loads the release from the store
+	 * @return the release, or {@literal null} if the loader found none
+	 */
+	public Release get(String releaseName, int version, Supplier<Release> loader) {
+		if (maxSize <= 0) {
+			return loader.get();
+		}
+		String key = key(releaseName, version);
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+		if (entry != null && !entry.isExpired()) {
+			hitCount.incrementAndGet();
+			return read(entry.value);
+		}
+		missCount.incrementAndGet();
+		long loadGeneration;
+		synchronized (entries) {
+			loadGeneration = generation.get();
+			loadGenerations.merge(loadGeneration, 1, Integer::sum);
+		}
+		try {
+			Release release = loader.get();
+			if (release != null) {
+				Entry loadedEntry = new Entry(write(release),
+						timeToLive > 0 ? System.currentTimeMillis() + timeToLive : 0);
+				synchronized (entries) {
+					if (lastEvicted(releaseName) <= loadGeneration) {
+						entries.put(key, loadedEntry);
+					}
+				}
+			}
+			return release;
+		}
+		finally {
+			synchronized (entries) {
+				loadGenerations.computeIfPresent(loadGeneration, (started, count) -> count > 1 ? count - 1 : null);
+				forgetEvictions();
+			}
+		}
+	}
+
+	/**
+	 * Evict the releases of the given name on this node and on all other nodes.
+	 * @param releaseName the name of the changed release
+	 */
+	public void invalidate(String releaseName) {
+		evict(releaseName);
+		redisTemplate.convertAndSend(INVALIDATION_CHANNEL, nodeId + ":" + releaseName);
+	}
+
+	/**
+	 * Evict the releases of the given name on this node.
+	 * @param releaseName the name of the changed release
+	 */
+	public void evict(String releaseName) {
+		String prefix = releaseName + "/";
+		synchronized (entries) {
+			long evictedGeneration = generation.incrementAndGet();
+			if (!loadGenerations.isEmpty()) {
+				evictedGenerations.put(releaseName, evictedGeneration);
+			}
+			for (Iterator<String> keys = entries.keySet().iterator(); keys.hasNext();) {
+				if (keys.next().startsWith(prefix)) {
+					keys.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evict all releases on this node.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			clearedGeneration = generation.incrementAndGet();
+			evictedGenerations.clear();
+			entries.clear();
+		}
+	}
+
+	@Override
+	public void onMessage(Message message, byte[] pattern) {
+		String body = new String(message.getBody(), StandardCharsets.UTF_8);
+		int separator = body.indexOf(':');
+		if (separator > 0 && !body.substring(0, separator).equals(nodeId)) {
+			evict(body.substring(separator + 1));
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	private long lastEvicted(String releaseName) {
+		return Math.max(evictedGenerations.getOrDefault(releaseName, 0L), clearedGeneration);
+	}
+
+	/**
+	 * Drop the evictions no load in flight started before, as they can no longer keep a
+	 * loaded release out of the cache. Called holding the lock on the entries.
+	 */
+	private void forgetEvictions() {
+		if (loadGenerations.isEmpty()) {
+			evictedGenerations.clear();
+		}
+		else {
+			long oldestLoadGeneration = loadGenerations.firstKey();
+			evictedGenerations.values().removeIf(evictedGeneration -> evictedGeneration <= oldestLoadGeneration);
+		}
+	}
+
+	private byte[] write(Release release) {
+		try {
+			return objectMapper.writeValueAsBytes(release);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not cache release " + release.getId(), e);
+		}
+	}
+
+	private Release read(byte[] entry) {
+		try {
+			return objectMapper.readValue(entry, Release.class);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not read cached release", e);
+		}
+	}
+
+	private static String key(String releaseName, int version) {
+		return releaseName + "/" + version;
+	}
+
+	/**
+	 * A serialized release and the time it expires at, 0 if it does not expire.
+	 */
+	private static final class Entry {
+
+		private final byte[] value;
+
+		private final long expiresAt;
+
+		Entry(byte[] value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired() {
+			return expiresAt > 0 && System.currentTimeMillis() >= expiresAt;
+		}
+	}
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.skipper.gilligan.repository;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cloud.skipper.gilligan.util.ContentHashUtils;
+import org.springframework.cloud.skipper.gilligan.util.LineDeltaUtils;
+import org.springframework.cloud.skipper.rpc.domain.Chart;
+import org.springframework.cloud.skipper.rpc.domain.Config;
+import org.springframework.cloud.skipper.rpc.domain.Release;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+/**
+ * Stores the chart, config and manifest of a release as content addressed blobs. Each
+ * blob is kept once under {@code releases:blob:<sha256>} no matter how many revisions
+ * refer to it, and a revision only stores the digests of its payload in the hash
+ * {@code releases:payload:<id>}.
+ *
+ * Template bodies are stored as blobs of their own and the stored chart JSON refers to
+ * them by digest, so charts that differ in a single template share all the others.
+ *
+ * A manifest is stored as a line delta against the manifest of the previous revision,
+ * with {@code manifestBase} naming that revision, whenever the delta is less than half
+ * the size of the manifest and the same manifest is not already stored in full. Every
+ * {@value #SNAPSHOT_INTERVAL}th revision of a chain is stored in full, which bounds the
+ * number of deltas applied to read a manifest.
+ *
+ * The references to each blob are counted in the hash {@code releases:blob-refs}. A
+ * payload holds a reference to its chart, config and manifest or delta blobs, and a
+ * chart blob holds a reference to each of its template blobs. A blob is deleted together
+ * with its count when its last reference is removed, so the blobs only used by deleted
+ * payloads do not stay behind. Adding and removing a reference are atomic scripts, a blob
+ * removed by one and stored again by another revision at the same time is written again.
+ *
+ * @author Mark Pollack
+ */
+@Component
+public class ReleasePayloadStore {
+
+	private static final String BLOB_PREFIX = "releases:blob:";
+
+	private static final String PAYLOAD_PREFIX = "releases:payload:";
+
+	private static final String BLOB_REFS_KEY = "releases:blob-refs";
+
+	private static final String CHART = "chart";
+
+	private static final String CONFIG = "config";
+
+	private static final String MANIFEST = "manifest";
+
+	private static final String MANIFEST_BASE = "manifestBase";
+
+	private static final String MANIFEST_DELTA = "manifestDelta";
+
+	private static final String MANIFEST_DEPTH = "manifestDepth";
+
+	/**
+	 * The maximum length of a chain of manifest deltas, including its full snapshot.
+	 */
+	static final int SNAPSHOT_INTERVAL = 8;
+
+	/**
+	 * Writes the blob KEYS[1] with the content ARGV[2] unless it exists, and adds a
+	 * reference to the digest ARGV[1] in the counts KEYS[2]. Returns 1 if the blob was
+	 * written.
+	 */
+	private static final RedisScript<Long> ACQUIRE_BLOB_SCRIPT = new DefaultRedisScript<>(
+			"local written = redis.call('SETNX', KEYS[1], ARGV[2])\n"
+					+ "redis.call('HINCRBY', KEYS[2], ARGV[1], 1)\n"
+					+ "return written",
+			Long.class);
+
+	/**
+	 * Adds a reference to the digest ARGV[1] in the counts KEYS[2] if the blob KEYS[1]
+	 * exists. Returns 1 if it does.
+	 */
+	private static final RedisScript<Long> ACQUIRE_EXISTING_BLOB_SCRIPT = new DefaultRedisScript<>(
+			"if redis.call('EXISTS', KEYS[1]) == 0 then\n"
+					+ "  return 0\n"
+					+ "end\n"
+					+ "redis.call('HINCRBY', KEYS[2], ARGV[1], 1)\n"
+					+ "return 1",
+			Long.class);
+
+	/**
+	 * Removes a reference to the digest ARGV[1] from the counts KEYS[2], deleting the blob
+	 * KEYS[1] and its count once no reference is left. Returns nil if the blob is kept,
+	 * otherwise its content if ARGV[2] is 1 and an empty string if it is not.
+	 */
+	private static final RedisScript<String> RELEASE_BLOB_SCRIPT = new DefaultRedisScript<>(
+			"if redis.call('HINCRBY', KEYS[2], ARGV[1], -1) > 0 then\n"
+					+ "  return false\n"
+					+ "end\n"
+					+ "redis.call('HDEL', KEYS[2], ARGV[1])\n"
+					+ "local content = ARGV[2] == '1' and redis.call('GET', KEYS[1]) or ''\n"
+					+ "redis.call('DEL', KEYS[1])\n"
+					+ "return content",
+			String.class);
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private final StringRedisTemplate redisTemplate;
+
+	@Autowired
+	public ReleasePayloadStore(StringRedisTemplate redisTemplate) {
+		this.redisTemplate = redisTemplate;
+	}
+
+	/**
+	 * Store the chart, config and manifest of a release that has been assigned an id.
+	 * Blobs that are already stored are not written again.
+	 * @param release the release whose payload to store
+	 * @param previousReleaseId the id of the previous revision the manifest may be stored
+	 * as a delta against, or {@literal null}
+	 */
+	public void store(Release release, String previousReleaseId) {
+		Map<String, String> digests = new HashMap<>();
+		if (release.getChart() != null) {
+			digests.put(CHART, storeChart(release.getChart()));
+		}
+		// getConfig() never returns null
+		digests.put(CONFIG, storeBlob(writeJson(objectMapper.valueToTree(release.getConfig()))));
+		if (release.getManifest() != null) {
+			digests.putAll(storeManifest(release.getManifest(), previousReleaseId));
+		}
+		redisTemplate.opsForHash().putAll(PAYLOAD_PREFIX + release.getId(), digests);
+	}
+
+	/**
+	 * Remove the payload of a release, leaving only its metadata record. Blobs that no
+	 * other payload refers to are deleted.
+	 * @param releaseId the id of the release
+	 */
+	public void delete(String releaseId) {
+		List<Object> digests = redisTemplate.opsForHash().multiGet(PAYLOAD_PREFIX + releaseId,
+				Arrays.asList(CHART, CONFIG, MANIFEST, MANIFEST_DELTA));
+		redisTemplate.delete(PAYLOAD_PREFIX + releaseId);
+		if (digests.get(0) != null) {
+			releaseChart((String) digests.get(0));
+		}
+		for (Object digest : digests.subList(1, digests.size())) {
+			if (digest != null) {
+				releaseBlob((String) digest, false);
+			}
+		}
+	}
+
+	/**
+	 * Store the manifest of a release in full if it is stored as a delta, so that it no
+	 * longer depends on the manifests of earlier revisions.
+	 * @param releaseId the id of the release
+	 */
+	public void snapshot(String releaseId) {
+		Object delta = redisTemplate.opsForHash().get(PAYLOAD_PREFIX + releaseId, MANIFEST_DELTA);
+		String manifest = delta != null ? loadManifest(releaseId) : null;
+		if (manifest != null) {
+			redisTemplate.opsForHash().put(PAYLOAD_PREFIX + releaseId, MANIFEST, storeBlob(manifest));
+			redisTemplate.opsForHash().delete(PAYLOAD_PREFIX + releaseId, MANIFEST_BASE, MANIFEST_DELTA,
+					MANIFEST_DEPTH);
+			releaseBlob((String) delta, false);
+		}
+	}
+
+	/**
+	 * Count the references of all stored payloads and charts to the blobs again and
+	 * delete the blobs nothing refers to. Used once when upgrading from a version that
+	 * did not count references, while no release is stored or deleted.
+	 * @return the number of blobs deleted
+	 */
+	public int recountReferences() {
+		Map<String, Long> counts = new HashMap<>();
+		Set<String> chartDigests = new HashSet<>();
+		scan(PAYLOAD_PREFIX + "*", payloadKey -> {
+			List<Object> digests = redisTemplate.opsForHash().multiGet(payloadKey,
+					Arrays.asList(CHART, CONFIG, MANIFEST, MANIFEST_DELTA));
+			for (Object digest : digests) {
+				if (digest != null) {
+					counts.merge((String) digest, 1L, Long::sum);
+				}
+			}
+			if (digests.get(0) != null) {
+				chartDigests.add((String) digests.get(0));
+			}
+		});
+		for (String chartDigest : chartDigests) {
+			String chartJson = redisTemplate.opsForValue().get(BLOB_PREFIX + chartDigest);
+			if (chartJson != null) {
+				for (String templateDigest : findTemplateDigests(chartJson)) {
+					counts.merge(templateDigest, 1L, Long::sum);
+				}
+			}
+		}
+		redisTemplate.delete(BLOB_REFS_KEY);
+		Map<String, String> storedCounts = new HashMap<>();
+		for (Map.Entry<String, Long> count : counts.entrySet()) {
+			storedCounts.put(count.getKey(), String.valueOf(count.getValue()));
+		}
+		if (!storedCounts.isEmpty()) {
+			redisTemplate.opsForHash().putAll(BLOB_REFS_KEY, storedCounts);
+		}
+		List<String> unreferencedBlobs = new ArrayList<>();
+		scan(BLOB_PREFIX + "*", blobKey -> {
+			if (!counts.containsKey(blobKey.substring(BLOB_PREFIX.length()))) {
+				unreferencedBlobs.add(blobKey);
+			}
+		});
+		if (!unreferencedBlobs.isEmpty()) {
+			redisTemplate.delete(unreferencedBlobs);
+		}
+		return unreferencedBlobs.size();
+	}
+
+	/**
+	 * Populate the chart, config and manifest of a release from the stored blobs.
+	 * @param release the release whose payload to load
+	 * @return the same release
+	 */
+	public Release load(Release release) {
+		List<Object> digests = redisTemplate.opsForHash().multiGet(PAYLOAD_PREFIX + release.getId(),
+				Arrays.asList(CHART, CONFIG, MANIFEST, MANIFEST_DELTA));
+		List<String> blobs = redisTemplate.opsForValue().multiGet(Arrays.asList(blobKey(digests.get(0)),
+				blobKey(digests.get(1)), blobKey(digests.get(2))));
+		release.setChart(blobs.get(0) != null ? loadChart(blobs.get(0)) : null);
+		release.setConfig(blobs.get(1) != null ? readJson(blobs.get(1), Config.class) : null);
+		release.setManifest(digests.get(3) != null ? loadManifest(release.getId()) : blobs.get(2));
+		return release;
+	}
+
+	private Map<String, String> storeManifest(String manifest, String previousReleaseId) {
+		String digest = ContentHashUtils.sha256Hex(manifest);
+		// A manifest that is already stored in full costs nothing to refer to
+		if (previousReleaseId != null && !redisTemplate.hasKey(BLOB_PREFIX + digest)) {
+			Object previousDepth = redisTemplate.opsForHash().get(PAYLOAD_PREFIX + previousReleaseId, MANIFEST_DEPTH);
+			int depth = previousDepth != null ? Integer.parseInt((String) previousDepth) + 1 : 1;
+			String previousManifest = depth < SNAPSHOT_INTERVAL ? loadManifest(previousReleaseId) : null;
+			if (previousManifest != null) {
+				String delta = LineDeltaUtils.diff(previousManifest, manifest);
+				if (delta.length() < manifest.length() / 2) {
+					Map<String, String> fields = new HashMap<>();
+					fields.put(MANIFEST_BASE, previousReleaseId);
+					fields.put(MANIFEST_DELTA, storeBlob(delta));
+					fields.put(MANIFEST_DEPTH, String.valueOf(depth));
+					return fields;
+				}
+			}
+		}
+		acquireBlob(digest, manifest);
+		return Collections.singletonMap(MANIFEST, digest);
+	}
+
+	/**
+	 * Load a manifest by following its chain of deltas back to a full snapshot.
+	 */
+	private String loadManifest(String releaseId) {
+		List<String> deltas = new ArrayList<>();
+		String manifest = null;
+		String id = releaseId;
+		while (manifest == null && id != null && deltas.size() < SNAPSHOT_INTERVAL) {
+			List<Object> fields = redisTemplate.opsForHash().multiGet(PAYLOAD_PREFIX + id,
+					Arrays.asList(MANIFEST, MANIFEST_BASE, MANIFEST_DELTA));
+			if (fields.get(0) != null) {
+				manifest = redisTemplate.opsForValue().get(blobKey(fields.get(0)));
+			}
+			else {
+				deltas.add(fields.get(2) != null ? redisTemplate.opsForValue().get(blobKey(fields.get(2))) : null);
+				id = (String) fields.get(1);
+			}
+		}
+		if (manifest == null || deltas.contains(null)) {
+			return null;
+		}
+		for (int i = deltas.size() - 1; i >= 0; i--) {
+			manifest = LineDeltaUtils.apply(manifest, deltas.get(i));
+		}
+		return manifest;
+	}
+
+	private String storeChart(Chart chart) {
+		JsonNode chartNode = objectMapper.valueToTree(chart);
+		String chartJson = writeJson(chartNode);
+		String chartDigest = ContentHashUtils.sha256Hex(chartJson);
+		if (acquireExistingBlob(chartDigest)) {
+			return chartDigest;
+		}
+		List<String> templateDigests = new ArrayList<>();
+		for (ObjectNode templateNode : findTemplates(chartNode)) {
+			JsonNode data = templateNode.get("data");
+			if (data != null && data.isTextual()) {
+				String templateDigest = storeBlob(data.asText());
+				templateDigests.add(templateDigest);
+				templateNode.put("data", templateDigest);
+			}
+		}
+		if (!acquireBlob(chartDigest, writeJson(chartNode))) {
+			// Stored by another revision meanwhile, whose chart blob holds the template references
+			for (String templateDigest : templateDigests) {
+				releaseBlob(templateDigest, false);
+			}
+		}
+		return chartDigest;
+	}
+
+	/**
+	 * Remove a reference to a chart blob, and the references it holds to its template
+	 * blobs once it is deleted.
+	 */
+	private void releaseChart(String chartDigest) {
+		String chartJson = releaseBlob(chartDigest, true);
+		if (chartJson != null && !chartJson.isEmpty()) {
+			for (String templateDigest : findTemplateDigests(chartJson)) {
+				releaseBlob(templateDigest, false);
+			}
+		}
+	}
+
+	private List<String> findTemplateDigests(String storedChartJson) {
+		List<String> templateDigests = new ArrayList<>();
+		for (ObjectNode templateNode : findTemplates(readJson(storedChartJson, JsonNode.class))) {
+			JsonNode digest = templateNode.get("data");
+			if (digest != null && digest.isTextual()) {
+				templateDigests.add(digest.asText());
+			}
+		}
+		return templateDigests;
+	}
+
+	private Chart loadChart(String storedChartJson) {
+		JsonNode chartNode = readJson(storedChartJson, JsonNode.class);
+		List<ObjectNode> templateNodes = new ArrayList<>();
+		List<String> templateKeys = new ArrayList<>();
+		for (ObjectNode templateNode : findTemplates(chartNode)) {
+			JsonNode digest = templateNode.get("data");
+			if (digest != null && digest.isTextual()) {
+				templateNodes.add(templateNode);
+				templateKeys.add(BLOB_PREFIX + digest.asText());
+			}
+		}
+		if (!templateKeys.isEmpty()) {
+			List<String> templateData = redisTemplate.opsForValue().multiGet(templateKeys);
+			for (int i = 0; i < templateNodes.size(); i++) {
+				templateNodes.get(i).put("data", templateData.get(i));
+			}
+		}
+		try {
+			return objectMapper.treeToValue(chartNode, Chart.class);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not deserialize Chart", e);
+		}
+	}
+
+	/**
+	 * Find the template nodes of a chart and of all its dependencies.
+	 */
+	private List<ObjectNode> findTemplates(JsonNode chartNode) {
+		List<ObjectNode> templateNodes = new ArrayList<>();
+		List<JsonNode> charts = new ArrayList<>();
+		charts.add(chartNode);
+		while (!charts.isEmpty()) {
+			JsonNode chart = charts.remove(charts.size() - 1);
+			for (JsonNode templateNode : chart.path("templates")) {
+				if (templateNode.isObject()) {
+					templateNodes.add((ObjectNode) templateNode);
+				}
+			}
+			for (JsonNode dependency : chart.path("dependencies")) {
+				charts.add(dependency);
+			}
+		}
+		return templateNodes;
+	}
+
+	private String storeBlob(String content) {
+		String digest = ContentHashUtils.sha256Hex(content);
+		acquireBlob(digest, content);
+		return digest;
+	}
+
+	/**
+	 * Add a reference to a blob, writing it unless it exists.
+	 * @return whether the blob was written
+	 */
+	private boolean acquireBlob(String digest, String content) {
+		return redisTemplate.execute(ACQUIRE_BLOB_SCRIPT, Arrays.asList(BLOB_PREFIX + digest, BLOB_REFS_KEY), digest,
+				content) == 1;
+	}
+
+	private boolean acquireExistingBlob(String digest) {
+		return redisTemplate.execute(ACQUIRE_EXISTING_BLOB_SCRIPT, Arrays.asList(BLOB_PREFIX + digest, BLOB_REFS_KEY),
+				digest) == 1;
+	}
+
+	/**
+	 * Remove a reference to a blob, deleting it if it was the last one.
+	 * @param returnContent whether to return the content of a deleted blob
+	 * @return {@literal null} if the blob is kept, otherwise its content or an empty
+	 * string
+	 */
+	private String releaseBlob(String digest, boolean returnContent) {
+		return redisTemplate.execute(RELEASE_BLOB_SCRIPT, Arrays.asList(BLOB_PREFIX + digest, BLOB_REFS_KEY), digest,
+				returnContent ? "1" : "0");
+	}
+
+	private void scan(String pattern, Consumer<String> action) {
+		redisTemplate.execute((RedisCallback<Void>) connection -> {
+			// Closing the cursor closes the connection, which the template releases itself
+			Cursor<byte[]> keys = connection.scan(ScanOptions.scanOptions().match(pattern).count(1000).build());
+			while (keys.hasNext()) {
+				action.accept(new String(keys.next(), StandardCharsets.UTF_8));
+			}
+			return null;
+		});
+	}
+
+	private String blobKey(Object digest) {
+		// Missing digests map to a key that is never written so MGET returns null
+		return BLOB_PREFIX + (digest != null ? digest : "none");
+	}
+
+	private String writeJson(JsonNode node) {
+		try {
+			return objectMapper.writeValueAsString(node);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not serialize release payload", e);
+		}
+	}
+
+	private <T> T readJson(String json, Class<T> type) {
+		try {
+			return objectMapper.readValue(json, type);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not deserialize " + type.getSimpleName(), e);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.skipper.gilligan.repository;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.cloud.skipper.rpc.domain.Release;
+
+/**
+ * Reads and writes the metadata record of a release. The format is selected with the
+ * {@code gilligan.release-format} property, {@code hash} (the default) or {@code smile}.
+ *
+ * @author Mark Pollack
+ */
+public interface ReleaseRecordStore {
+
+	/**
+	 * Store the release record, assigning an id if the release does not have one yet.
+	 * @param release the release to store
+	 */
+	void save(Release release);
+
+	/**
+	 * Write only the deployment id and info of a stored release.
+	 * @param release the release whose status to store
+	 */
+	void saveStatus(Release release);
+
+	/**
+	 * Write the records of several stored releases at once.
+	 * @param releases the releases to store
+	 */
+	void saveAll(Collection<Release> releases);
+
+	/**
+	 * Remove the record of a release, if it exists.
+	 * @param id the release id
+	 */
+	void delete(String id);
+
+	Release findOne(String id);
+
+	/**
+	 * Find the records with the given ids, skipping ids that are not found.
+	 * @param ids the release ids
+	 * @return the releases in the order of the given ids
+	 */
+	List<Release> findAll(Collection<String> ids);
+}
@@ -26,4 +26,17 @@ import org.springframework.stereotype.Repository;
 @Repository
 public interface ReleaseRepository extends CrudRepository<Release, String>, CustomReleaseRepository {
 
+	/**
+	 * Routed to {@link ReleaseRepositoryImpl} so that the version index is kept up to
+	 * date.
+	 */
+	@Override
+	<S extends Release> S save(S release);
+
+	/**
+	 * Routed to {@link ReleaseRepositoryImpl} so that the configured
+	 * {@link ReleaseRecordStore} is used.
+	 */
+	@Override
+	Release findOne(String id);
 }
@@ -16,82 +16,514 @@
 
 package org.springframework.cloud.skipper.gilligan.repository;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cloud.skipper.gilligan.util.YmlUtils;
+import org.springframework.cloud.skipper.rpc.domain.Chart;
+import org.springframework.cloud.skipper.rpc.domain.Config;
 import org.springframework.cloud.skipper.rpc.domain.Deployment;
 import org.springframework.cloud.skipper.rpc.domain.Release;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations.TypedTuple;
+import org.springframework.data.redis.core.convert.Bucket;
+import org.springframework.data.redis.core.convert.RedisConverter;
+import org.springframework.data.redis.core.convert.RedisData;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 
 /**
+ * Custom release queries, backed by indexes kept next to the release records in Redis.
+ * Each release name has a sorted set {@code releases:versions:<name>} of its revision ids
+ * scored by version, and each deployment label a set {@code releases:labels:<key>=<value>}
+ * of the deployments carrying it, so lookups never load or parse unrelated releases.
+ *
  * @author Mark Pollack
  */
 public class ReleaseRepositoryImpl implements CustomReleaseRepository {
 
+	private static final String RELEASE_KEYSPACE = "releases";
+
+	private static final String VERSION_INDEX_PREFIX = "releases:versions:";
+
+	private static final String DEPLOYMENT_PREFIX = "releases:deployment:";
+
+	private static final String LABEL_INDEX_PREFIX = "releases:labels:";
+
+	private static final String PRUNED_VERSION_PREFIX = "releases:pruned:";
+
+	private static final String REVISION_PREFIX = "releases:revision:";
+
+	/**
+	 * The number of deployments of a release read with one command.
+	 */
+	private static final int DEPLOYMENT_BATCH_SIZE = 16;
+
+	/**
+	 * Set to {@link #STORAGE_LAYOUT} once the releases stored by earlier versions were
+	 * backfilled.
+	 */
+	private static final String STORAGE_LAYOUT_KEY = "releases:layout";
+
+	private static final String STORAGE_LAYOUT = "3";
+
+	/**
+	 * Sets the revision counter of a release name to ARGV[1] if it is the next version,
+	 * initializing the counter from the version index. Returns -1 on success or the
+	 * current version on a conflict.
+	 */
+	private static final RedisScript<Long> CLAIM_REVISION_SCRIPT = new DefaultRedisScript<>(
+			"local current = redis.call('GET', KEYS[1])\n"
+					+ "if not current then\n"
+					+ "  current = redis.call('ZREVRANGE', KEYS[2], 0, 0, 'WITHSCORES')[2] or '0'\n"
+					+ "end\n"
+					+ "if tonumber(ARGV[1]) ~= tonumber(current) + 1 then\n"
+					+ "  return tonumber(current)\n"
+					+ "end\n"
+					+ "redis.call('SET', KEYS[1], ARGV[1])\n"
+					+ "return -1",
+			Long.class);
+
+	/**
+	 * Removes the revision counter of a release name if it still holds ARGV[1], so that the
+	 * next claim initializes it from the version index again.
+	 */
+	private static final RedisScript<Long> RELEASE_REVISION_SCRIPT = new DefaultRedisScript<>(
+			"if redis.call('GET', KEYS[1]) == ARGV[1] then\n"
+					+ "  return redis.call('DEL', KEYS[1])\n"
+					+ "end\n"
+					+ "return 0",
+			Long.class);
+
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+
+	private static final ThreadLocal<Map<String, Release>> pendingReleases = new ThreadLocal<>();
+
+	@Autowired
+	private ReleaseRecordStore recordStore;
+
 	@Autowired
-	private ReleaseRepository releaseRepository;
+	private StringRedisTemplate redisTemplate;
 
+	@Autowired
+	private ReleasePayloadStore payloadStore;
+
+	@Autowired
+	private ReleaseCache releaseCache;
+
+	@Autowired
+	private RedisConverter redisConverter;
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * A new revision is only stored if its version directly follows the current version of
+	 * the release, compared and set atomically by a Lua script on the counter
+	 * {@code releases:revision:<name>}, so concurrent operations on one release fail fast
+	 * while operations on different releases never contend. This also rejects installing
+	 * a name that already has releases. The payload is stored by the
+	 * {@link ReleasePayloadStore} and the deployments of the manifest are added to the
+	 * label index. The revision is added to the version index last, so it is only found
+	 * once everything else is in place. If storing it fails, whatever was already written
+	 * is removed and the claimed version is handed back.
+	 */
 	@Override
-	public Release findLatestRelease(String releaseName) {
-		Iterable<Release> releases = releaseRepository.findAll();
-		int lastVersion = 0;
-		Release latestRelease = null;
-		for (Release release : releases) {
-			// Find the latest release
-			if (release.getName().equals(releaseName)) {
-				if (release.getVersion() > lastVersion) {
-					lastVersion = release.getVersion();
-					latestRelease = release;
-				}
+	public <S extends Release> S save(S release) {
+		Map<String, Release> unitOfWork = pendingReleases.get();
+		if (unitOfWork != null && release.getId() != null) {
+			unitOfWork.put(release.getId(), release);
+			return release;
+		}
+		boolean newRelease = release.getId() == null;
+		if (newRelease) {
+			claimRevision(release);
+		}
+		try {
+			recordStore.save(release);
+			if (newRelease) {
+				Set<String> previousIds = redisTemplate.opsForZSet()
+						.reverseRange(versionIndexKey(release.getName()), 0, 0);
+				payloadStore.store(release, previousIds.isEmpty() ? null : previousIds.iterator().next());
+				indexDeployments(release);
+			}
+			redisTemplate.opsForZSet().add(versionIndexKey(release.getName()), release.getId(), release.getVersion());
+		}
+		catch (RuntimeException ex) {
+			if (newRelease) {
+				releaseRevision(release, ex);
 			}
+			throw ex;
 		}
-		return latestRelease;
+		releaseCache.invalidate(release.getName());
+		return release;
 	}
 
 	@Override
-	public Release findByNameAndVersion(String releaseName, int version) {
-		Iterable<Release> releases = releaseRepository.findAll();
+	public Release saveStatus(Release release) {
+		recordStore.saveStatus(release);
+		releaseCache.invalidate(release.getName());
+		return release;
+	}
 
-		Release matchingRelease = null;
-		for (Release release : releases) {
-			if (release.getName().equals(releaseName) && release.getVersion() == version) {
-				matchingRelease = release;
-				break;
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Saves are collected per thread and handed to
+	 * {@link ReleaseRecordStore#saveAll(java.util.Collection)} once the unit of work ends.
+	 */
+	@Override
+	public <T> T doInUnitOfWork(Supplier<T> operation) {
+		if (pendingReleases.get() != null) {
+			return operation.get();
+		}
+		Map<String, Release> unitOfWork = new LinkedHashMap<>();
+		pendingReleases.set(unitOfWork);
+		T result;
+		try {
+			result = operation.get();
+		}
+		catch (RuntimeException | Error ex) {
+			pendingReleases.remove();
+			// Flush also when the operation failed so the state it reached is recorded,
+			// without hiding why the operation failed
+			try {
+				flush(unitOfWork);
 			}
+			catch (RuntimeException flushEx) {
+				ex.addSuppressed(flushEx);
+			}
+			throw ex;
+		}
+		pendingReleases.remove();
+		flush(unitOfWork);
+		return result;
+	}
+
+	private void flush(Map<String, Release> unitOfWork) {
+		if (!unitOfWork.isEmpty()) {
+			recordStore.saveAll(unitOfWork.values());
+			unitOfWork.values().stream().map(Release::getName).distinct().forEach(releaseCache::invalidate);
+		}
+	}
+
+	@Override
+	public Release findOne(String id) {
+		return recordStore.findOne(id);
+	}
+
+	@Override
+	public Release loadPayload(Release release) {
+		return payloadStore.load(release);
+	}
+
+	@Override
+	public Release findLatestRelease(String releaseName) {
+		return releaseCache.get(releaseName, ReleaseCache.LATEST_VERSION, () -> findFirst(
+				redisTemplate.opsForZSet().reverseRange(versionIndexKey(releaseName), 0, 0)));
+	}
+
+	@Override
+	public Release findByNameAndVersion(String releaseName, int version) {
+		return releaseCache.get(releaseName, version, () -> findFirst(
+				redisTemplate.opsForZSet().rangeByScore(versionIndexKey(releaseName), version, version)));
+	}
+
+	@Override
+	public List<Release> findHistory(String releaseName, int offset, int max) {
+		long start = Math.max(offset, 0);
+		long end = (max > 0) ? start + max - 1 : -1;
+		Set<String> ids = redisTemplate.opsForZSet().reverseRange(versionIndexKey(releaseName), start, end);
+		List<Release> history = new ArrayList<>();
+		if (ids != null && !ids.isEmpty()) {
+			history.addAll(recordStore.findAll(ids));
 		}
-		return matchingRelease;
+		history.sort(Comparator.comparing(Release::getVersion));
+		return history;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Deployments are stored as JSON under {@code releases:deployment:<id>:<index>} when
+	 * their release is first saved, so a selector is answered by intersecting the label
+	 * sets without parsing any manifest YAML.
+	 */
 	@Override
 	public Deployment[] select(Map<String, String> selectorMap) {
+		if (selectorMap.isEmpty()) {
+			return new Deployment[0];
+		}
+		Iterator<Map.Entry<String, String>> selectors = selectorMap.entrySet().iterator();
+		String firstLabelKey = labelIndexKey(selectors.next());
+		List<String> otherLabelKeys = new ArrayList<>();
+		while (selectors.hasNext()) {
+			otherLabelKeys.add(labelIndexKey(selectors.next()));
+		}
+		Set<String> deploymentRefs = redisTemplate.opsForSet().intersect(firstLabelKey, otherLabelKeys);
 		List<Deployment> matchingDeployments = new ArrayList<>();
+		if (deploymentRefs != null && !deploymentRefs.isEmpty()) {
+			List<String> deploymentKeys = new ArrayList<>();
+			for (String deploymentRef : deploymentRefs) {
+				deploymentKeys.add(DEPLOYMENT_PREFIX + deploymentRef);
+			}
+			for (String json : redisTemplate.opsForValue().multiGet(deploymentKeys)) {
+				if (json != null) {
+					matchingDeployments.add(readJson(json, Deployment.class));
+				}
+			}
+		}
+		return matchingDeployments.toArray(new Deployment[matchingDeployments.size()]);
+	}
 
-		Iterable<Release> releases = releaseRepository.findAll();
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The highest version reduced to metadata is recorded under
+	 * {@code releases:pruned:<name>}, so the next call starts after it.
+	 */
+	@Override
+	public List<Release> pruneRevisions(String releaseName, int revisionsToKeep) {
+		Set<TypedTuple<String>> newestPruned = redisTemplate.opsForZSet()
+				.reverseRangeWithScores(versionIndexKey(releaseName), revisionsToKeep, revisionsToKeep);
+		if (newestPruned == null || newestPruned.isEmpty()) {
+			return Collections.emptyList();
+		}
+		double lastVersion = newestPruned.iterator().next().getScore();
+		String prunedVersion = redisTemplate.opsForValue().get(PRUNED_VERSION_PREFIX + releaseName);
+		double firstVersion = prunedVersion != null ? Double.parseDouble(prunedVersion) + 1 : Double.NEGATIVE_INFINITY;
+		Set<String> ids = redisTemplate.opsForZSet().rangeByScore(versionIndexKey(releaseName), firstVersion,
+				lastVersion);
+		List<Release> releases = recordStore.findAll(ids);
+		// The oldest kept manifest must not depend on the manifests being removed
+		Set<String> oldestKeptIds = redisTemplate.opsForZSet().rangeByScore(versionIndexKey(releaseName),
+				lastVersion + 1, Double.POSITIVE_INFINITY, 0, 1);
+		if (!releases.isEmpty() && !oldestKeptIds.isEmpty()) {
+			payloadStore.snapshot(oldestKeptIds.iterator().next());
+		}
 		for (Release release : releases) {
-			List<Deployment> unmarshalledDeployments = YmlUtils.unmarshallDeployments(release.getManifest());
-			for (Deployment unmarshalledDeployment : unmarshalledDeployments) {
-				boolean match = false;
-				Map<String, String> labels = unmarshalledDeployment.getLabels();
-				if (labels != null) {
-					for (Map.Entry<String, String> selectorEntry : selectorMap.entrySet()) {
-						if (labels.containsKey(selectorEntry.getKey())) {
-							if (labels.get(selectorEntry.getKey()).equals(selectorEntry.getValue())) {
-								match = true;
-							}
-							else {
-								match = false;
-								break;
-							}
-						}
-					}
+			unindexDeployments(release.getId());
+			payloadStore.delete(release.getId());
+		}
+		redisTemplate.opsForValue().set(PRUNED_VERSION_PREFIX + releaseName, String.valueOf((long) lastVersion));
+		return releases;
+	}
+
+	@Override
+	public int backfillLegacyReleases() {
+		if (STORAGE_LAYOUT.equals(redisTemplate.opsForValue().get(STORAGE_LAYOUT_KEY))) {
+			return 0;
+		}
+		payloadStore.recountReferences();
+		int backfilled = 0;
+		for (String id : redisTemplate.opsForSet().members(RELEASE_KEYSPACE)) {
+			String releaseKey = RELEASE_KEYSPACE + ":" + id;
+			Map<String, String> fields = redisTemplate.<String, String>opsForHash().entries(releaseKey);
+			String releaseName = fields.get("name");
+			boolean changed = false;
+			List<Object> legacyFields = new ArrayList<>();
+			for (String field : fields.keySet()) {
+				if (isLegacyPayloadField(field)) {
+					legacyFields.add(field);
+				}
+			}
+			if (!legacyFields.isEmpty()) {
+				try {
+					Release release = readLegacyRelease(id, fields);
+					payloadStore.store(release, null);
+					indexDeployments(release);
 				}
-				if (match) {
-					matchingDeployments.add(unmarshalledDeployment);
+				catch (RuntimeException e) {
+					throw new IllegalStateException("Could not backfill release " + id, e);
 				}
+				redisTemplate.opsForHash().delete(releaseKey, legacyFields.toArray());
+				changed = true;
+			}
+			// Added last, a release is only found by name once its payload is in place
+			if (releaseName != null && redisTemplate.opsForZSet().score(versionIndexKey(releaseName), id) == null) {
+				String version = fields.get("version");
+				redisTemplate.opsForZSet().add(versionIndexKey(releaseName), id,
+						version != null ? Double.parseDouble(version) : 0);
+				changed = true;
+			}
+			if (changed) {
+				backfilled++;
 			}
 		}
-		return matchingDeployments.toArray(new Deployment[matchingDeployments.size()]);
+		redisTemplate.opsForValue().set(STORAGE_LAYOUT_KEY, STORAGE_LAYOUT);
+		return backfilled;
+	}
+
+	private Release readLegacyRelease(String id, Map<String, String> fields) {
+		// Without the type hint of the release record the converter reads the legacy fields
+		fields.remove("_class");
+		LegacyRelease legacyRelease = (LegacyRelease) redisConverter.read(LegacyRelease.class,
+				new RedisData(Bucket.newBucketFromStringMap(fields)));
+		Release release = new Release();
+		release.setId(id);
+		release.setName(legacyRelease.name);
+		release.setVersion(legacyRelease.version);
+		release.setChart(legacyRelease.chart);
+		release.setConfig(legacyRelease.config);
+		release.setManifest(legacyRelease.manifest);
+		return release;
+	}
+
+	private void claimRevision(Release release) {
+		Long currentVersion = redisTemplate.execute(CLAIM_REVISION_SCRIPT,
+				Arrays.asList(REVISION_PREFIX + release.getName(), versionIndexKey(release.getName())),
+				String.valueOf(release.getVersion()));
+		if (currentVersion != null && currentVersion >= 0) {
+			throw new OptimisticLockingFailureException("Release " + release.getName() + " v"
+					+ release.getVersion() + " conflicts with a concurrent operation, the current version is v"
+					+ currentVersion);
+		}
+	}
+
+	/**
+	 * Undo a new revision that could not be stored completely: remove what was written of
+	 * it and hand the claimed version back, unless another operation moved the counter
+	 * on. Cleanup failures are added to the original failure.
+	 */
+	private void releaseRevision(Release release, RuntimeException failure) {
+		try {
+			String id = release.getId();
+			if (id != null) {
+				redisTemplate.opsForZSet().remove(versionIndexKey(release.getName()), id);
+				unindexDeployments(id);
+				payloadStore.delete(id);
+				recordStore.delete(id);
+				release.setId(null);
+			}
+			redisTemplate.execute(RELEASE_REVISION_SCRIPT, Collections.singletonList(REVISION_PREFIX + release.getName()),
+					String.valueOf(release.getVersion()));
+		}
+		catch (RuntimeException cleanupEx) {
+			failure.addSuppressed(cleanupEx);
+		}
+	}
+
+	private void indexDeployments(Release release) {
+		if (release.getManifest() == null) {
+			return;
+		}
+		List<Deployment> deployments = YmlUtils.getDeployments(release);
+		for (int i = 0; i < deployments.size(); i++) {
+			Deployment deployment = deployments.get(i);
+			String deploymentRef = release.getId() + ":" + i;
+			redisTemplate.opsForValue().set(DEPLOYMENT_PREFIX + deploymentRef, writeJson(deployment));
+			if (deployment.getLabels() != null) {
+				for (Map.Entry<String, String> label : deployment.getLabels().entrySet()) {
+					redisTemplate.opsForSet().add(labelIndexKey(label), deploymentRef);
+				}
+			}
+		}
+	}
+
+	@Override
+	public List<Deployment> findDeployments(String releaseId) {
+		List<Deployment> deployments = new ArrayList<>();
+		List<String> deploymentKeys = new ArrayList<>(DEPLOYMENT_BATCH_SIZE);
+		while (deployments.size() % DEPLOYMENT_BATCH_SIZE == 0) {
+			deploymentKeys.clear();
+			for (int i = 0; i < DEPLOYMENT_BATCH_SIZE; i++) {
+				deploymentKeys.add(DEPLOYMENT_PREFIX + releaseId + ":" + (deployments.size() + i));
+			}
+			int found = deployments.size();
+			for (String deploymentJson : redisTemplate.opsForValue().multiGet(deploymentKeys)) {
+				if (deploymentJson == null) {
+					break;
+				}
+				deployments.add(readJson(deploymentJson, Deployment.class));
+			}
+			if (deployments.size() == found) {
+				break;
+			}
+		}
+		return deployments;
+	}
+
+	private void unindexDeployments(String releaseId) {
+		for (int i = 0;; i++) {
+			String deploymentKey = DEPLOYMENT_PREFIX + releaseId + ":" + i;
+			String deploymentJson = redisTemplate.opsForValue().get(deploymentKey);
+			if (deploymentJson == null) {
+				break;
+			}
+			Deployment deployment = readJson(deploymentJson, Deployment.class);
+			if (deployment.getLabels() != null) {
+				for (Map.Entry<String, String> label : deployment.getLabels().entrySet()) {
+					redisTemplate.opsForSet().remove(labelIndexKey(label), releaseId + ":" + i);
+				}
+			}
+			redisTemplate.delete(deploymentKey);
+		}
+	}
+
+	private static String writeJson(Object value) {
+		try {
+			return objectMapper.writeValueAsString(value);
+		}
+		catch (JsonProcessingException e) {
+			throw new IllegalStateException("Could not serialize " + value.getClass().getSimpleName(), e);
+		}
+	}
+
+	private static <T> T readJson(String json, Class<T> type) {
+		try {
+			return objectMapper.readValue(json, type);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not deserialize " + type.getSimpleName(), e);
+		}
+	}
+
+	private Release findFirst(Set<String> ids) {
+		if (ids == null || ids.isEmpty()) {
+			return null;
+		}
+		return recordStore.findOne(ids.iterator().next());
+	}
+
+	private static boolean isLegacyPayloadField(String field) {
+		return field.equals("manifest") || field.startsWith("chart.") || field.startsWith("config.");
+	}
+
+	private static String versionIndexKey(String releaseName) {
+		return VERSION_INDEX_PREFIX + releaseName;
+	}
+
+	private static String labelIndexKey(Map.Entry<String, String> label) {
+		return LABEL_INDEX_PREFIX + label.getKey() + "=" + label.getValue();
+	}
+
+	/**
+	 * A release as it was stored before its chart, config and manifest were moved to the
+	 * {@link ReleasePayloadStore}, with the payload as fields of the release hash.
+	 */
+	static class LegacyRelease {
+
+		private String name;
+
+		private int version;
+
+		private Chart chart;
+
+		private Config config;
+
+		private String manifest;
 	}
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.skipper.gilligan.repository;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.skipper.rpc.domain.Release;
+import org.springframework.data.keyvalue.core.KeyValueOperations;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.stereotype.Component;
+
+/**
+ * Stores each release record as a single Smile encoded value under
+ * {@code releases:record:<id>}, instead of a hash with one field per property. Values are
+ * written as raw bytes through the {@code redisTemplate} defined in
+ * {@code GilliganConfiguration}. A record is a single small value, so a status update
+ * rewrites the whole record and several records are written with one {@code MSET}.
+ *
+ * Records written in the hash format are migrated when they are read: the record is
+ * rewritten as a Smile value and the hash is removed, so a store can be switched to this
+ * format without an offline migration.
+ *
+ * @author Mark Pollack
+ */
+@Component
+@ConditionalOnProperty(prefix = "gilligan", name = "release-format", havingValue = "smile")
+public class SmileReleaseRecordStore implements ReleaseRecordStore {
+
+	private static final String RECORD_PREFIX = "releases:record:";
+
+	private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory())
+			.addMixIn(Release.class, ReleaseRecordMixin.class);
+
+	private final RedisOperations<?, ?> redisOperations;
+
+	private final KeyValueOperations keyValueTemplate;
+
+	@Autowired
+	public SmileReleaseRecordStore(@Qualifier("redisTemplate") RedisOperations<?, ?> redisOperations,
+			KeyValueOperations keyValueTemplate) {
+		this.redisOperations = redisOperations;
+		this.keyValueTemplate = keyValueTemplate;
+	}
+
+	@Override
+	public void save(Release release) {
+		if (release.getId() == null) {
+			release.setId(UUID.randomUUID().toString());
+		}
+		byte[] key = recordKey(release.getId());
+		byte[] value = write(release);
+		redisOperations.execute((RedisConnection connection) -> {
+			connection.set(key, value);
+			return null;
+		});
+	}
+
+	@Override
+	public void saveStatus(Release release) {
+		save(release);
+	}
+
+	@Override
+	public void saveAll(Collection<Release> releases) {
+		Map<byte[], byte[]> records = new LinkedHashMap<>();
+		for (Release release : releases) {
+			if (release.getId() == null) {
+				release.setId(UUID.randomUUID().toString());
+			}
+			records.put(recordKey(release.getId()), write(release));
+		}
+		redisOperations.execute((RedisConnection connection) -> {
+			connection.mSet(records);
+			return null;
+		});
+	}
+
+	@Override
+	public void delete(String id) {
+		byte[] key = recordKey(id);
+		redisOperations.execute((RedisConnection connection) -> connection.del(key));
+		keyValueTemplate.delete(id, Release.class);
+	}
+
+	@Override
+	public Release findOne(String id) {
+		byte[] key = recordKey(id);
+		byte[] value = redisOperations.execute((RedisConnection connection) -> connection.get(key));
+		return value != null ? read(value) : migrate(id);
+	}
+
+	@Override
+	public List<Release> findAll(Collection<String> ids) {
+		List<String> idList = new ArrayList<>(ids);
+		byte[][] keys = new byte[idList.size()][];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = recordKey(idList.get(i));
+		}
+		List<byte[]> values = redisOperations.execute((RedisConnection connection) -> connection.mGet(keys));
+		List<Release> releases = new ArrayList<>();
+		for (int i = 0; i < idList.size(); i++) {
+			Release release = values.get(i) != null ? read(values.get(i)) : migrate(idList.get(i));
+			if (release != null) {
+				releases.add(release);
+			}
+		}
+		return releases;
+	}
+
+	/**
+	 * Rewrite a record stored in the hash format as a Smile value.
+	 * @param id the release id
+	 * @return the migrated release or {@code null} if no hash record exists
+	 */
+	private Release migrate(String id) {
+		Release release = keyValueTemplate.findById(id, Release.class);
+		if (release != null) {
+			save(release);
+			keyValueTemplate.delete(id, Release.class);
+		}
+		return release;
+	}
+
+	private byte[] write(Release release) {
+		try {
+			return smileMapper.writeValueAsBytes(release);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not serialize release " + release.getId(), e);
+		}
+	}
+
+	private Release read(byte[] value) {
+		try {
+			return smileMapper.readValue(value, Release.class);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not deserialize release record", e);
+		}
+	}
+
+	private static byte[] recordKey(String id) {
+		return (RECORD_PREFIX + id).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Keeps the payload, which is stored by the {@link ReleasePayloadStore}, out of the
+	 * record.
+	 */
+	@JsonIgnoreProperties({ "chart", "config", "manifest" })
+	abstract static class ReleaseRecordMixin {
+	}
+}
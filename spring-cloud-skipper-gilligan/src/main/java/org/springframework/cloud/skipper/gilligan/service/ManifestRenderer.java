@@ -0,0 +1,530 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.cloud.skipper.gilligan.util.ContentHashUtils;
+import org.springframework.cloud.skipper.rpc.domain.Chart;
+import org.springframework.cloud.skipper.rpc.domain.Template;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ObjectUtils;
+
+/**
+ * Renders the templates of a chart and of all its dependencies into one manifest. Each
+ * chart's templates are compiled by the {@link TemplateEngine} named by the
+ * {@code engine} field of the chart's metadata, Mustache if it names none. The templates
+ * are collected depth first, the chart's own templates before those of its
+ * dependencies, and rendered on a pool of {@code gilligan.render.threads} threads. The
+ * rendered templates are joined in the order they were collected, so the manifest is the
+ * same as when rendering one template after the other. With 0 threads, or for a chart
+ * with a single template, rendering happens on the calling thread. Templates of at least
+ * {@code gilligan.render.stream-threshold} characters are always rendered on the calling
+ * thread when it is their turn, streamed to the target writer.
+ *
+ * The output of the {@code gilligan.render.cache-size} most recently rendered template
+ * texts is kept together with the model values each rendering looked up, as long as the
+ * kept outputs add up to at most {@code gilligan.render.cache-max-chars} characters. The
+ * least recently used outputs are dropped to stay within both bounds and an output larger
+ * than the character bound is not kept at all. A template whose text and looked up values
+ * are unchanged, like most templates of a chart when an update changes a single value, is
+ * not executed again and its previous output is reused. A template that reads the model
+ * as a whole is always executed. With a cache size of 0, and for templates of at least
+ * the stream threshold, the output is neither cached nor buffered but streamed to the
+ * target writer. Executed and reused templates are published as
+ * {@code gilligan.render.templates.*} metrics, the characters kept in the cache as the
+ * {@code gilligan.render.cache.chars} metric.
+ *
+ * Each rendering is bounded, so a single chart cannot hold a server thread or the heap
+ * indefinitely. A chart may contain at most {@code gilligan.render.max-templates}
+ * templates and nest its dependencies at most {@code gilligan.render.max-depth} levels
+ * deep. Its manifest may have at most {@code gilligan.render.max-output-size} characters
+ * and must be rendered within {@code gilligan.render.timeout} milliseconds. A value of 0
+ * disables a limit. The output size and time are checked while the templates are written,
+ * so a runaway template is stopped when it reaches the limit rather than after it has
+ * finished. A rendering that exceeds a limit fails with an
+ * {@link IllegalStateException} and is counted in the {@code gilligan.render.limits.*}
+ * metrics.
+ *
+ * @author Mark Pollack
+ */
+@Component
+public class ManifestRenderer implements PublicMetrics {
+
+	private final TemplateCache templateCache;
+
+	private final ExecutorService executor;
+
+	private final int cacheSize;
+
+	private final Map<String, RenderedTemplate> renderedTemplates = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final long cacheMaxChars;
+
+	private long cachedChars;
+
+	private final int maxTemplates;
+
+	private final int maxDepth;
+
+	private final long maxOutputSize;
+
+	private final long timeout;
+
+	private final int streamThreshold;
+
+	private final AtomicLong executedCount = new AtomicLong();
+
+	private final AtomicLong reusedCount = new AtomicLong();
+
+	private final AtomicLong maxRenderedSize = new AtomicLong();
+
+	private final AtomicLong templatesExceededCount = new AtomicLong();
+
+	private final AtomicLong depthExceededCount = new AtomicLong();
+
+	private final AtomicLong outputSizeExceededCount = new AtomicLong();
+
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	@Autowired
+	public ManifestRenderer(TemplateCache templateCache,
+			@Value("${gilligan.render.threads:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}") int threads,
+			@Value("${gilligan.render.cache-size:256}") int cacheSize,
+			@Value("${gilligan.render.cache-max-chars:4194304}") long cacheMaxChars,
+			@Value("${gilligan.render.max-templates:1000}") int maxTemplates,
+			@Value("${gilligan.render.max-depth:10}") int maxDepth,
+			@Value("${gilligan.render.max-output-size:16777216}") long maxOutputSize,
+			@Value("${gilligan.render.timeout:30000}") long timeout,
+			@Value("${gilligan.render.stream-threshold:65536}") int streamThreshold) {
+		this.templateCache = templateCache;
+		this.cacheSize = cacheSize;
+		this.cacheMaxChars = cacheMaxChars;
+		this.maxTemplates = maxTemplates;
+		this.maxDepth = maxDepth;
+		this.maxOutputSize = maxOutputSize;
+		this.timeout = timeout;
+		this.streamThreshold = streamThreshold;
+		if (threads > 0) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("manifest-renderer-");
+			threadFactory.setDaemon(true);
+			this.executor = Executors.newFixedThreadPool(threads, threadFactory);
+		}
+		else {
+			this.executor = null;
+		}
+	}
+
+	/**
+	 * Replace the placeholders of all templates of the chart and its dependencies with
+	 * model values. One string is returned that contains the YAML of all templates using
+	 * the YAML document delimiter.
+	 * @param chart the top level chart
+	 * @param model the placeholder values
+	 * @return a YAML string containing all the templates with replaced values
+	 */
+	public String render(Chart chart, Properties model) {
+		StringWriter writer = new StringWriter();
+		render(chart, model, writer);
+		return writer.toString();
+	}
+
+	/**
+	 * Replace the placeholders of all templates of the chart and its dependencies with
+	 * model values, writing the YAML of all templates to the writer using the YAML
+	 * document delimiter. Templates rendered on the calling thread are written directly,
+	 * templates rendered in parallel are buffered until it is their turn to be written.
+	 * Templates whose output is cached are buffered once, when they are executed.
+	 * @param chart the top level chart
+	 * @param model the placeholder values
+	 * @param writer the writer the manifest is written to, not closed
+	 * @throws IllegalStateException if the chart or its manifest exceeds a render limit
+	 */
+	public void render(Chart chart, Properties model, Writer writer) {
+		RenderBudget budget = new RenderBudget();
+		List<ChartTemplate> templates = new ArrayList<>();
+		collectTemplates(chart, 0, templates);
+		if (maxTemplates > 0 && templates.size() > maxTemplates) {
+			templatesExceededCount.incrementAndGet();
+			throw new IllegalStateException(
+					"The chart has " + templates.size() + " templates, more than the limit of " + maxTemplates);
+		}
+		try {
+			if (executor == null || templates.size() < 2) {
+				for (ChartTemplate template : templates) {
+					render(template, model, writer, budget);
+				}
+			}
+			else {
+				renderParallel(templates, model, writer, budget);
+			}
+			maxRenderedSize.accumulateAndGet(budget.size.get(), Math::max);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not write the manifest", e);
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		long chars;
+		synchronized (renderedTemplates) {
+			chars = cachedChars;
+		}
+		return Arrays.asList(new Metric<Number>("gilligan.render.templates.executed", executedCount.get()),
+				new Metric<Number>("gilligan.render.templates.reused", reusedCount.get()),
+				new Metric<Number>("gilligan.render.output.max", maxRenderedSize.get()),
+				new Metric<Number>("gilligan.render.cache.chars", chars),
+				new Metric<Number>("gilligan.render.limits.templates", templatesExceededCount.get()),
+				new Metric<Number>("gilligan.render.limits.depth", depthExceededCount.get()),
+				new Metric<Number>("gilligan.render.limits.output-size", outputSizeExceededCount.get()),
+				new Metric<Number>("gilligan.render.limits.timeout", timeoutCount.get()));
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Render the templates on the pool, except for large templates, which are streamed
+	 * from the calling thread once the templates before them have been written. If a
+	 * template can not be rendered or written, the templates still rendering are
+	 * cancelled.
+	 */
+	private void renderParallel(List<ChartTemplate> templates, Properties model, Writer writer, RenderBudget budget)
+			throws IOException {
+		List<Future<String>> renderedTemplates = new ArrayList<>(templates.size());
+		for (ChartTemplate template : templates) {
+			renderedTemplates.add(isStreamed(template) ? null : executor.submit(() -> {
+				StringWriter templateWriter = new StringWriter();
+				render(template, model, templateWriter, budget);
+				return templateWriter.toString();
+			}));
+		}
+		for (int i = 0; i < templates.size(); i++) {
+			Future<String> renderedTemplate = renderedTemplates.get(i);
+			try {
+				if (renderedTemplate != null) {
+					writer.write(await(renderedTemplate, renderedTemplates, budget));
+				}
+				else {
+					render(templates.get(i), model, writer, budget);
+				}
+			}
+			catch (IOException | RuntimeException e) {
+				cancel(renderedTemplates, budget);
+				throw e;
+			}
+		}
+	}
+
+	private boolean isStreamed(ChartTemplate template) {
+		String templateData = template.template.getData();
+		return streamThreshold > 0 && templateData != null && templateData.length() >= streamThreshold;
+	}
+
+	private void render(ChartTemplate template, Properties model, Writer writer, RenderBudget budget)
+			throws IOException {
+		Writer limitedWriter = new LimitedWriter(writer, budget);
+		limitedWriter.write("\n---\n# Source: ");
+		limitedWriter.write(template.template.getName());
+		limitedWriter.write("\n");
+		if (cacheSize <= 0 || isStreamed(template)) {
+			executedCount.incrementAndGet();
+			templateCache.getTemplate(template.engine, template.template.getData()).execute(model, limitedWriter);
+		}
+		else {
+			writer.write(renderCached(template.engine, template.template.getData(), model, budget));
+		}
+	}
+
+	private String renderCached(String engine, String templateData, Properties model, RenderBudget budget)
+			throws IOException {
+		String digest = ContentHashUtils.sha256Hex(templateData);
+		String key = engine + ":" + digest;
+		RenderedTemplate renderedTemplate;
+		synchronized (renderedTemplates) {
+			renderedTemplate = renderedTemplates.get(key);
+		}
+		if (renderedTemplate != null && renderedTemplate.isRenderedWith(model)) {
+			reusedCount.incrementAndGet();
+			budget.write(renderedTemplate.output.length());
+			return renderedTemplate.output;
+		}
+		executedCount.incrementAndGet();
+		RecordingModel recordingModel = new RecordingModel(model);
+		StringWriter templateWriter = new StringWriter();
+		templateCache.getTemplate(engine, templateData, digest).execute(recordingModel,
+				new LimitedWriter(templateWriter, budget));
+		String output = templateWriter.toString();
+		if (!recordingModel.readAll && output.length() <= cacheMaxChars) {
+			cache(key, new RenderedTemplate(recordingModel.values, output));
+		}
+		return output;
+	}
+
+	/**
+	 * Keep the output of a template, dropping the least recently used outputs while the
+	 * cache holds too many outputs or characters.
+	 */
+	private void cache(String key, RenderedTemplate renderedTemplate) {
+		synchronized (renderedTemplates) {
+			RenderedTemplate previous = renderedTemplates.put(key, renderedTemplate);
+			cachedChars += renderedTemplate.output.length() - (previous != null ? previous.output.length() : 0);
+			Iterator<RenderedTemplate> eldest = renderedTemplates.values().iterator();
+			while ((renderedTemplates.size() > cacheSize || cachedChars > cacheMaxChars) && eldest.hasNext()) {
+				cachedChars -= eldest.next().output.length();
+				eldest.remove();
+			}
+		}
+	}
+
+	private void collectTemplates(Chart chart, int depth, List<ChartTemplate> templates) {
+		if (maxDepth > 0 && depth > maxDepth) {
+			depthExceededCount.incrementAndGet();
+			throw new IllegalStateException("The chart nests dependencies deeper than the limit of " + maxDepth);
+		}
+		String engine = chart.getMetadata() != null ? chart.getMetadata().getEngine() : null;
+		if (chart.getTemplates() != null) {
+			for (Template template : chart.getTemplates()) {
+				templates.add(new ChartTemplate(template, engine));
+			}
+		}
+		if (chart.getDependencies() != null) {
+			for (Chart subChart : chart.getDependencies()) {
+				collectTemplates(subChart, depth + 1, templates);
+			}
+		}
+	}
+
+	private static String await(Future<String> renderedTemplate, List<Future<String>> renderedTemplates,
+			RenderBudget budget) {
+		try {
+			return budget.deadline != 0 ? renderedTemplate.get(budget.remainingTime(), TimeUnit.NANOSECONDS)
+					: renderedTemplate.get();
+		}
+		catch (InterruptedException e) {
+			cancel(renderedTemplates, budget);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while rendering the manifest", e);
+		}
+		catch (TimeoutException e) {
+			IllegalStateException timedOut = budget.timedOut();
+			cancel(renderedTemplates, budget);
+			throw timedOut;
+		}
+		catch (ExecutionException e) {
+			cancel(renderedTemplates, budget);
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Could not render the manifest", e.getCause());
+		}
+	}
+
+	private static void cancel(List<Future<String>> renderedTemplates, RenderBudget budget) {
+		budget.aborted.set(true);
+		for (Future<String> renderedTemplate : renderedTemplates) {
+			if (renderedTemplate != null) {
+				renderedTemplate.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * The output size and time left to one rendering of a manifest, shared by all threads
+	 * rendering its templates. Once a limit is exceeded or the rendering has failed, every
+	 * further write fails, so no thread keeps rendering a manifest nobody waits for.
+	 */
+	private class RenderBudget {
+
+		private final long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+
+		private final AtomicLong size = new AtomicLong();
+
+		private final AtomicBoolean aborted = new AtomicBoolean();
+
+		void write(int count) {
+			if (aborted.get()) {
+				throw new IllegalStateException("Rendering of the manifest was aborted");
+			}
+			if (maxOutputSize > 0 && size.addAndGet(count) > maxOutputSize) {
+				throw exceeded(outputSizeExceededCount,
+						"The manifest exceeds the limit of " + maxOutputSize + " characters");
+			}
+			if (deadline != 0 && remainingTime() <= 0) {
+				throw timedOut();
+			}
+		}
+
+		long remainingTime() {
+			return deadline - System.nanoTime();
+		}
+
+		IllegalStateException timedOut() {
+			return exceeded(timeoutCount, "The manifest was not rendered within " + timeout + " ms");
+		}
+
+		private IllegalStateException exceeded(AtomicLong exceededCount, String message) {
+			if (aborted.compareAndSet(false, true)) {
+				exceededCount.incrementAndGet();
+			}
+			return new IllegalStateException(message);
+		}
+	}
+
+	/**
+	 * Charges everything written to the target writer to a render budget.
+	 */
+	private static class LimitedWriter extends Writer {
+
+		private final Writer writer;
+
+		private final RenderBudget budget;
+
+		LimitedWriter(Writer writer, RenderBudget budget) {
+			this.writer = writer;
+			this.budget = budget;
+		}
+
+		@Override
+		public void write(char[] buffer, int offset, int length) throws IOException {
+			budget.write(length);
+			writer.write(buffer, offset, length);
+		}
+
+		@Override
+		public void write(String string, int offset, int length) throws IOException {
+			budget.write(length);
+			writer.write(string, offset, length);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			writer.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			writer.flush();
+		}
+	}
+
+	/**
+	 * A template together with the template engine of the chart it belongs to.
+	 */
+	private static class ChartTemplate {
+
+		private final Template template;
+
+		private final String engine;
+
+		ChartTemplate(Template template, String engine) {
+			this.template = template;
+			this.engine = engine;
+		}
+	}
+
+	/**
+	 * The output of a template together with the model values it looked up, {@literal null}
+	 * for names that were not in the model.
+	 */
+	private static class RenderedTemplate {
+
+		private final Map<Object, Object> values;
+
+		private final String output;
+
+		RenderedTemplate(Map<Object, Object> values, String output) {
+			this.values = values;
+			this.output = output;
+		}
+
+		boolean isRenderedWith(Properties model) {
+			for (Map.Entry<Object, Object> value : values.entrySet()) {
+				if (!ObjectUtils.nullSafeEquals(model.get(value.getKey()), value.getValue())) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Records the names Mustache looks up in the model and the values it finds.
+	 */
+	private static class RecordingModel extends AbstractMap<Object, Object> {
+
+		private final Properties model;
+
+		private final Map<Object, Object> values = new HashMap<>();
+
+		private boolean readAll;
+
+		RecordingModel(Properties model) {
+			this.model = model;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public Object get(Object key) {
+			Object value = model.get(key);
+			values.put(key, value);
+			return value;
+		}
+
+		@Override
+		public Set<Entry<Object, Object>> entrySet() {
+			readAll = true;
+			return model.entrySet();
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Renders templates with JMustache. This is the engine of charts that do not select one.
+ *
+ * @author Mark Pollack
+ */
+@Component
+public class MustacheTemplateEngine implements TemplateEngine {
+
+	/**
+	 * The name of the engine.
+	 */
+	public static final String NAME = "mustache";
+
+	private final Mustache.Compiler compiler = Mustache.compiler();
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public CompiledTemplate compile(String templateData) {
+		Template template = compiler.compile(templateData);
+		return (model, writer) -> template.execute(model, writer);
+	}
+}
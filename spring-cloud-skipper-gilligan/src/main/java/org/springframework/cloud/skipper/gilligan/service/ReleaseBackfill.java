@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cloud.skipper.gilligan.repository.ReleaseRepository;
+import org.springframework.stereotype.Component;
+
+/**
+ * Brings releases stored by earlier versions of Gilligan up to the current storage layout
+ * when the server starts, before it serves any request.
+ *
+ * @author Mark Pollack
+ * @see org.springframework.cloud.skipper.gilligan.repository.CustomReleaseRepository#backfillLegacyReleases()
+ */
+@Component
+public class ReleaseBackfill {
+
+	private static final Logger log = LoggerFactory.getLogger(ReleaseBackfill.class);
+
+	private final ReleaseRepository releaseRepository;
+
+	@Autowired
+	public ReleaseBackfill(ReleaseRepository releaseRepository) {
+		this.releaseRepository = releaseRepository;
+	}
+
+	@PostConstruct
+	public void backfill() {
+		int backfilled = releaseRepository.backfillLegacyReleases();
+		if (backfilled > 0) {
+			log.info("Backfilled " + backfilled + " releases stored by an earlier version");
+		}
+	}
+}
@@ -66,7 +66,7 @@ public class ReleaseDeployer {
 	 */
 	public void deploy(Release release) {
 		// Deploy the application
-		List<Deployment> appDeployments = YmlUtils.unmarshallDeployments(release.getManifest());
+		List<Deployment> appDeployments = YmlUtils.getDeployments(release);
 
 		List<String> deploymentIds = new ArrayList<>();
 		for (Deployment appDeployment : appDeployments) {
@@ -82,8 +82,8 @@ public class ReleaseDeployer {
 		release.getInfo().setStatus(status);
 		release.getInfo().setDescription("Install complete");
 
-		// Store updated state in in DB
-		releaseRepository.save(release);
+		// Make the deployment ids visible right away, before the rest of the operation
+		releaseRepository.saveStatus(release);
 
 	}
 
@@ -116,9 +116,9 @@ public class ReleaseDeployer {
 				}
 			}
 		}
+		String platformStatus;
 		if (allClear) {
-			release.getInfo().getStatus().setPlatformStatus("All Applications deployed successfully");
-			releaseRepository.save(release);
+			platformStatus = "All Applications deployed successfully";
 		}
 		else {
 			StringBuffer stringBuffer = new StringBuffer();
@@ -130,8 +130,11 @@ public class ReleaseDeployer {
 							.append(", ");
 				}
 			}
-			String platformStatus = stringBuffer.toString();
+			platformStatus = stringBuffer.toString();
 			platformStatus = platformStatus.replaceAll(", $", "");
+		}
+		// Only write a changed status, so polling does not invalidate cached releases
+		if (!platformStatus.equals(release.getInfo().getStatus().getPlatformStatus())) {
 			release.getInfo().getStatus().setPlatformStatus(platformStatus);
 			releaseRepository.save(release);
 		}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+/**
+ * Serializes the operations on a release name. Names are hashed onto
+ * {@code gilligan.locks.stripes} fair locks, so threads waiting for a release are served
+ * in arrival order and operations on names of different stripes run in parallel.
+ *
+ * With {@code gilligan.locks.redis} set, the holder of a stripe also takes the lock
+ * {@code releases:lock:<name>} in Redis, so the operations are serialized across all
+ * Gilligan nodes. The Redis lock expires after {@code gilligan.locks.lease} milliseconds
+ * so a crashed node does not block a release forever, and waiting for it is not fair
+ * between nodes. While the operation runs, the lease is renewed every third of its
+ * duration. A lease that could not be renewed in time and was taken by another node is
+ * logged and counted in the {@code gilligan.locks.lost} metric.
+ *
+ * A lock that is not acquired within {@code gilligan.locks.timeout} milliseconds fails
+ * the operation with a {@link CannotAcquireLockException}. Lock waits are published as
+ * {@code gilligan.locks.*} metrics.
+ *
+ * @author Mark Pollack
+ */
+@Component
+public class ReleaseLocks implements PublicMetrics {
+
+	private static final Logger log = LoggerFactory.getLogger(ReleaseLocks.class);
+
+	private static final String LOCK_PREFIX = "releases:lock:";
+
+	private static final RedisScript<Long> ACQUIRE_SCRIPT = new DefaultRedisScript<>(
+			"if redis.call('SET', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then return 1 else return 0 end",
+			Long.class);
+
+	private static final RedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+			"if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) else return 0 end",
+			Long.class);
+
+	private static final RedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+			"if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('PEXPIRE', KEYS[1], ARGV[2]) else return 0 end",
+			Long.class);
+
+	private static final long MAX_POLL_INTERVAL = 200;
+
+	private final StringRedisTemplate redisTemplate;
+
+	private final ReentrantLock[] stripes;
+
+	private final long timeout;
+
+	private final boolean redis;
+
+	private final long lease;
+
+	private final ScheduledExecutorService leaseRenewer;
+
+	private final ThreadLocal<Set<String>> heldNames = ThreadLocal.withInitial(HashSet::new);
+
+	private final AtomicLong acquisitions = new AtomicLong();
+
+	private final AtomicLong totalWaitTime = new AtomicLong();
+
+	private final AtomicLong maxWaitTime = new AtomicLong();
+
+	private final AtomicLong timeouts = new AtomicLong();
+
+	private final AtomicLong lostLeases = new AtomicLong();
+
+	@Autowired
+	public ReleaseLocks(StringRedisTemplate redisTemplate, @Value("${gilligan.locks.stripes:64}") int stripes,
+			@Value("${gilligan.locks.timeout:30000}") long timeout,
+			@Value("${gilligan.locks.redis:false}") boolean redis,
+			@Value("${gilligan.locks.lease:300000}") long lease) {
+		Assert.isTrue(stripes >= 1, "gilligan.locks.stripes must be at least 1, was " + stripes);
+		this.redisTemplate = redisTemplate;
+		this.stripes = new ReentrantLock[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = new ReentrantLock(true);
+		}
+		this.timeout = timeout;
+		this.redis = redis;
+		this.lease = lease;
+		if (redis) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("release-lock-renewer-");
+			threadFactory.setDaemon(true);
+			this.leaseRenewer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		}
+		else {
+			this.leaseRenewer = null;
+		}
+	}
+
+	/**
+	 * Run the operation while holding the lock of the release name. Nested calls for a
+	 * name the current thread already holds run directly.
+	 * @param releaseName the name of the release
+	 * @param operation the release operation
+	 * @return the result of the operation
+	 * @throws CannotAcquireLockException if the lock is not acquired in time
+	 */
+	public <T> T doWithLock(String releaseName, Supplier<T> operation) {
+		if (heldNames.get().contains(releaseName)) {
+			return operation.get();
+		}
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+		ReentrantLock stripe = stripes[(releaseName.hashCode() & Integer.MAX_VALUE) % stripes.length];
+		acquire(stripe, releaseName, deadline);
+		try {
+			String token = redis ? acquireRedisLock(releaseName, deadline) : null;
+			ScheduledFuture<?> renewal = token != null ? leaseRenewer.scheduleWithFixedDelay(
+					() -> renewLease(releaseName, token), lease / 3, lease / 3, TimeUnit.MILLISECONDS) : null;
+			recordWait(System.nanoTime() - start);
+			heldNames.get().add(releaseName);
+			try {
+				return operation.get();
+			}
+			finally {
+				heldNames.get().remove(releaseName);
+				if (token != null) {
+					renewal.cancel(false);
+					redisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(LOCK_PREFIX + releaseName),
+							token);
+				}
+			}
+		}
+		finally {
+			stripe.unlock();
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		int queued = 0;
+		for (ReentrantLock stripe : stripes) {
+			queued += stripe.getQueueLength();
+		}
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Number>("gilligan.locks.acquired", acquisitions.get()));
+		metrics.add(new Metric<Number>("gilligan.locks.wait.total", TimeUnit.NANOSECONDS.toMillis(totalWaitTime.get())));
+		metrics.add(new Metric<Number>("gilligan.locks.wait.max", TimeUnit.NANOSECONDS.toMillis(maxWaitTime.get())));
+		metrics.add(new Metric<Number>("gilligan.locks.timeouts", timeouts.get()));
+		metrics.add(new Metric<Number>("gilligan.locks.queued", queued));
+		metrics.add(new Metric<Number>("gilligan.locks.lost", lostLeases.get()));
+		return metrics;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (leaseRenewer != null) {
+			leaseRenewer.shutdownNow();
+		}
+	}
+
+	private void acquire(ReentrantLock stripe, String releaseName, long deadline) {
+		boolean locked;
+		try {
+			locked = stripe.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CannotAcquireLockException("Interrupted while waiting for the lock of release " + releaseName);
+		}
+		if (!locked) {
+			throw timedOut(releaseName);
+		}
+	}
+
+	private String acquireRedisLock(String releaseName, long deadline) {
+		String token = UUID.randomUUID().toString();
+		long pollInterval = 10;
+		while (!Long.valueOf(1).equals(redisTemplate.execute(ACQUIRE_SCRIPT,
+				Collections.singletonList(LOCK_PREFIX + releaseName), token, String.valueOf(lease)))) {
+			if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pollInterval) > deadline) {
+				throw timedOut(releaseName);
+			}
+			try {
+				Thread.sleep(pollInterval);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CannotAcquireLockException(
+						"Interrupted while waiting for the lock of release " + releaseName);
+			}
+			pollInterval = Math.min(pollInterval * 2, MAX_POLL_INTERVAL);
+		}
+		return token;
+	}
+
+	private void renewLease(String releaseName, String token) {
+		Long renewed;
+		try {
+			renewed = redisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(LOCK_PREFIX + releaseName), token,
+					String.valueOf(lease));
+		}
+		catch (RuntimeException e) {
+			log.warn("Could not renew the lock of release " + releaseName + ", retrying", e);
+			return;
+		}
+		if (!Long.valueOf(1).equals(renewed)) {
+			lostLeases.incrementAndGet();
+			log.error("The lock of release " + releaseName + " expired while it was held, operations on it may"
+					+ " have run concurrently");
+			throw new IllegalStateException("Lost the lock of release " + releaseName);
+		}
+	}
+
+	private CannotAcquireLockException timedOut(String releaseName) {
+		timeouts.incrementAndGet();
+		return new CannotAcquireLockException(
+				"Could not acquire the lock of release " + releaseName + " within " + timeout + " ms");
+	}
+
+	private void recordWait(long waitTime) {
+		acquisitions.incrementAndGet();
+		totalWaitTime.addAndGet(waitTime);
+		maxWaitTime.accumulateAndGet(waitTime, Math::max);
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.skipper.gilligan.repository.ManifestRepository;
+import org.springframework.cloud.skipper.gilligan.repository.ReleaseRepository;
+import org.springframework.cloud.skipper.rpc.domain.Release;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the last {@code gilligan.retention.revisions} revisions of each release in full
+ * and reduces older revisions to their metadata, deleting their payload, label index
+ * entries and manifest directory. Retention runs in the background for one release name
+ * at a time, after a new revision of it was stored. The default of 0 keeps every revision
+ * in full.
+ *
+ * @author Mark Pollack
+ */
+@Component
+public class ReleaseRetention {
+
+	private static final Logger log = LoggerFactory.getLogger(ReleaseRetention.class);
+
+	private final ReleaseRepository releaseRepository;
+
+	private final ManifestRepository manifestRepository;
+
+	private final ReleaseLocks releaseLocks;
+
+	private final int revisionsToKeep;
+
+	private final ExecutorService executor;
+
+	@Autowired
+	public ReleaseRetention(ReleaseRepository releaseRepository, ManifestRepository manifestRepository,
+			ReleaseLocks releaseLocks, @Value("${gilligan.retention.revisions:0}") int revisionsToKeep) {
+		this.releaseRepository = releaseRepository;
+		this.manifestRepository = manifestRepository;
+		this.releaseLocks = releaseLocks;
+		this.revisionsToKeep = revisionsToKeep;
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("release-retention-");
+		threadFactory.setDaemon(true);
+		this.executor = Executors.newSingleThreadExecutor(threadFactory);
+	}
+
+	/**
+	 * Schedule retention for the given release name.
+	 * @param releaseName the name of the release a revision was stored for
+	 */
+	public void revisionStored(String releaseName) {
+		if (revisionsToKeep > 0) {
+			executor.execute(() -> apply(releaseName));
+		}
+	}
+
+	/**
+	 * Reduce the revisions of the given release name that fall outside the retention,
+	 * holding the lock of the release so no operation on it runs meanwhile.
+	 * @param releaseName the name of the release
+	 */
+	public void apply(String releaseName) {
+		try {
+			List<Release> prunedReleases = releaseLocks.doWithLock(releaseName,
+					() -> releaseRepository.pruneRevisions(releaseName, revisionsToKeep));
+			for (Release release : prunedReleases) {
+				manifestRepository.delete(release);
+				log.info("Reduced " + releaseName + " v" + release.getVersion() + " to metadata");
+			}
+		}
+		catch (RuntimeException e) {
+			log.warn("Could not apply retention to release " + releaseName, e);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
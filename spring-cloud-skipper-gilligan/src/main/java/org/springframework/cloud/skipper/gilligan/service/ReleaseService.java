@@ -20,17 +20,16 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.util.*;
 
-import com.samskivert.mustache.Mustache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.DumperOptions;
 import org.yaml.snakeyaml.Yaml;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cloud.skipper.client.YamlUtils;
 import org.springframework.cloud.skipper.gilligan.repository.ManifestRepository;
 import org.springframework.cloud.skipper.gilligan.repository.ReleaseRepository;
 import org.springframework.cloud.skipper.gilligan.util.YmlMergeUtils;
+import org.springframework.cloud.skipper.gilligan.util.YmlUtils;
 import org.springframework.cloud.skipper.rpc.domain.*;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
@@ -47,6 +46,13 @@ public class ReleaseService {
 
 	private static final Logger log = LoggerFactory.getLogger(ReleaseService.class);
 
+	private static final ThreadLocal<Yaml> mergeYaml = ThreadLocal.withInitial(() -> {
+		DumperOptions options = new DumperOptions();
+		options.setDefaultFlowStyle(DumperOptions.FlowStyle.FLOW);
+		options.setPrettyFlow(true);
+		return new Yaml(options);
+	});
+
 	private final ReleaseRepository releaseRepository;
 
 	private final ReleaseDeployer releaseDeployer;
@@ -55,16 +61,34 @@ public class ReleaseService {
 
 	private final ManifestRepository manifestRepository;
 
+	private final ReleaseRetention releaseRetention;
+
+	private final ReleaseLocks releaseLocks;
+
+	private final ManifestRenderer manifestRenderer;
+
+	private final ValuesCache valuesCache;
+
 	@Autowired
 	public ReleaseService(ReleaseRepository releaseRepository, ReleaseDeployer releaseDeployer,
-			UpdateStrategy updateStrategy, ManifestRepository manifestRepository) {
+			UpdateStrategy updateStrategy, ManifestRepository manifestRepository,
+			ReleaseRetention releaseRetention, ReleaseLocks releaseLocks, ManifestRenderer manifestRenderer,
+			ValuesCache valuesCache) {
 		this.releaseRepository = releaseRepository;
 		this.releaseDeployer = releaseDeployer;
 		this.updateStrategy = updateStrategy;
 		this.manifestRepository = manifestRepository;
+		this.releaseRetention = releaseRetention;
+		this.releaseLocks = releaseLocks;
+		this.manifestRenderer = manifestRenderer;
+		this.valuesCache = valuesCache;
 	}
 
 	public Release install(Release release, Chart chart, Config configValues) {
+		return releaseLocks.doWithLock(release.getName(), () -> doInstall(release, chart, configValues));
+	}
+
+	private Release doInstall(Release release, Chart chart, Config configValues) {
 
 		// Resolve model values to render from the chart values file and command line
 		// values.
@@ -72,20 +96,25 @@ public class ReleaseService {
 		Properties model = mergeConfigValues(release.getChart().getConfigValues(), configValues);
 
 		// Render yaml resources
-		String manifest = createManifest(chart, model);
+		String manifest = manifestRenderer.render(chart, model);
 		release.setManifest(manifest);
+		// Parsed once, deploying and indexing the release use the parsed deployments
+		release.setDeploymentKinds(YmlUtils.unmarshallDeploymentKinds(manifest));
 
 		// Store in DB
 		releaseRepository.save(release);
 
-		// Store manifest in git?
+		releaseRepository.doInUnitOfWork(() -> {
+			// Deploy the application
+			releaseDeployer.deploy(release);
 
-		// Deploy the application
-		releaseDeployer.deploy(release);
+			manifestRepository.store(release);
 
-		manifestRepository.store(release);
+			releaseDeployer.calculateStatus(release);
 
-		releaseDeployer.calculateStatus(release);
+			return release;
+		});
+		releaseRetention.revisionStored(release.getName());
 
 		return release;
 
@@ -112,8 +141,6 @@ public class ReleaseService {
 
 		Assert.notNull(requestedRelease.getInfo(),
 				"Release Info is missing for release name = " + releaseName + " version = " + version);
-		Assert.notNull(requestedRelease.getChart(),
-				"Release Chart is missing for release name = " + releaseName + " version = " + version);
 		releaseDeployer.calculateStatus(requestedRelease);
 
 		return requestedRelease;
@@ -121,7 +148,13 @@ public class ReleaseService {
 	}
 
 	public Release update(String name, Chart chart, Config configValues, boolean resetValues, boolean reuseValues) {
-		// No locking...
+		return releaseLocks.doWithLock(name,
+				() -> doUpdate(name, chart, configValues, resetValues, reuseValues));
+	}
+
+	private Release doUpdate(String name, Chart chart, Config configValues, boolean resetValues,
+			boolean reuseValues) {
+		// Saving the new revision fails if an operation on another node already stored it
 		Release currentRelease = releaseRepository.findLatestRelease(name);
 
 		// Detemine if configValues should be updated to the current release's values
@@ -132,7 +165,7 @@ public class ReleaseService {
 		Properties model = mergeConfigValues(chart.getConfigValues(), configValues);
 
 		// Render yaml resources
-		String manifest = createManifest(chart, model);
+		String manifest = manifestRenderer.render(chart, model);
 
 		Release updatedRelease = new Release();
 		updatedRelease.setName(name);
@@ -148,26 +181,37 @@ public class ReleaseService {
 		updatedRelease.setInfo(info);
 		updatedRelease.setVersion(revision);
 		updatedRelease.setManifest(manifest);
+		updatedRelease.setDeploymentKinds(YmlUtils.unmarshallDeploymentKinds(manifest));
 
 		// Store in DB
 		releaseRepository.save(updatedRelease);
 
-		return updateStrategy.update(currentRelease, updatedRelease);
+		Release deployedRelease = releaseRepository
+				.doInUnitOfWork(() -> updateStrategy.update(currentRelease, updatedRelease));
+		releaseRetention.revisionStored(name);
 
-	}
+		return deployedRelease;
 
-	public Release[] history(String name, int max) {
-		Iterable<Release> releases = releaseRepository.findAll();
+	}
 
-		List<Release> releaseList = new ArrayList<Release>();
-		for (Release release : releases) {
-			releaseList.add(release);
-		}
-		releaseList.sort(Comparator.comparing(Release::getVersion));
+	/**
+	 * Return a page of the revisions of the specified release. Only release metadata is
+	 * returned, the chart, config and manifest of each revision are not loaded.
+	 * @param name name of the release
+	 * @param max maximum number of revisions to return, all revisions if 0
+	 * @param offset number of most recent revisions to skip
+	 * @return the revisions ordered by version
+	 */
+	public Release[] history(String name, int max, int offset) {
+		List<Release> releaseList = releaseRepository.findHistory(name, offset, max);
 		return releaseList.toArray(new Release[releaseList.size()]);
 	}
 
 	public Release rollback(String name, int version) {
+		return releaseLocks.doWithLock(name, () -> doRollback(name, version));
+	}
+
+	private Release doRollback(String name, int version) {
 		// finds the previous release and prepares a new release object with the previous
 		// release's configuration
 
@@ -180,7 +224,10 @@ public class ReleaseService {
 		log.info("Rolling back " + name + " (current: v" + currentRelease.getVersion()
 				+ ", target: v" + rollbackVersion + ")");
 
-		Release previousRelease = releaseRepository.findByNameAndVersion(name, version);
+		Release previousRelease = releaseRepository
+				.loadPayload(releaseRepository.findByNameAndVersion(name, rollbackVersion));
+		Assert.notNull(previousRelease.getChart(), "Release " + name + " v" + rollbackVersion
+				+ " was reduced to metadata by the retention policy and can not be rolled back to");
 
 		Release release = new Release();
 		release.setName(name);
@@ -196,11 +243,21 @@ public class ReleaseService {
 		release.setInfo(info);
 		release.setVersion(currentRelease.getVersion() + 1);
 		release.setManifest(previousRelease.getManifest());
+		// The manifest is unchanged, so the deployments indexed for the previous release are
+		// reused instead of parsing it again when the release is stored and deployed
+		List<Deployment> deployments = releaseRepository.findDeployments(previousRelease.getId());
+		if (!deployments.isEmpty()) {
+			release.setDeploymentKinds(toDeploymentKinds(deployments));
+		}
 
 		// Store in DB
 		releaseRepository.save(release);
 
-		return updateStrategy.update(currentRelease, release);
+		Release deployedRelease = releaseRepository
+				.doInUnitOfWork(() -> updateStrategy.update(currentRelease, release));
+		releaseRetention.revisionStored(name);
+
+		return deployedRelease;
 
 	}
 
@@ -220,6 +277,17 @@ public class ReleaseService {
 		}
 	}
 
+	private static List<DeploymentKind> toDeploymentKinds(List<Deployment> deployments) {
+		List<DeploymentKind> deploymentKinds = new ArrayList<>(deployments.size());
+		for (Deployment deployment : deployments) {
+			DeploymentKind deploymentKind = new DeploymentKind();
+			deploymentKind.setKind("Deployment");
+			deploymentKind.setDeployment(deployment);
+			deploymentKinds.add(deploymentKind);
+		}
+		return deploymentKinds;
+	}
+
 	private static Map<String, String> propertiesToMap(Properties props) {
 		HashMap<String, String> hm = new HashMap<String, String>();
 		Enumeration<Object> e = props.keys();
@@ -247,6 +315,7 @@ public class ReleaseService {
 			log.info("Reset values to the chart's orginal version.");
 			return;
 		}
+		releaseRepository.loadPayload(currentRelease);
 		// If the ReuseValues flag is set, we always copy the old values over the new
 		// config's values.
 		if (reuseValues) {
@@ -272,41 +341,6 @@ public class ReleaseService {
 		}
 	}
 
-	/**
-	 * Iterate overall the template files, replacing placeholders with model values. One
-	 * string is returned that contain all the YAML of multiple files using YAML file
-	 * delimiter.
-	 * @param chart The top level chart that contains all templates where placeholders are
-	 * to be replaced
-	 * @param model The placeholder values.
-	 * @return A YAML string containing all the templates with replaced values.
-	 */
-	private String createManifest(Chart chart, Properties model) {
-
-		// Aggregate all valid manifests into one big doc.
-		StringBuilder sb = new StringBuilder();
-		// Top level templates.
-		Template[] templates = chart.getTemplates();
-		if (templates != null) {
-			for (Template template : templates) {
-				String templateAsString = new String(template.getData());
-				com.samskivert.mustache.Template mustacheTemplate = Mustache.compiler().compile(templateAsString);
-				sb.append("\n---\n# Source: " + template.getName() + "\n");
-				sb.append(mustacheTemplate.execute(model));
-			}
-		}
-
-		if (chart.getDependencies() != null) {
-			Chart[] charts = chart.getDependencies();
-			for (Chart subChart : charts) {
-				sb.append(createManifest(subChart, model));
-			}
-		}
-		// sb.append(createManifest())
-
-		return sb.toString();
-	}
-
 	/**
 	 * Will merge the properties, derived from YAML formst, contained in
 	 * commandLineConfigValues and templateConfigValue, giving preference to
@@ -320,25 +354,14 @@ public class ReleaseService {
 	 * commandLineConfig values override values in templateConfig.
 	 */
 	private Properties mergeConfigValues(Config templateConfigValue, Config commandLineConfigValues) {
-		// TODO investigate
-		Properties commandLineOverrideProperties;
-		if (commandLineConfigValues == null) {
-			commandLineOverrideProperties = new Properties();
-		}
-		else {
-			commandLineOverrideProperties = YamlUtils.getProperties(commandLineConfigValues.getRaw());
-		}
-		Properties templateVariables;
-		if (templateConfigValue == null) {
-			templateVariables = new Properties();
+		// The cached values are shared, copy them into a model of this release
+		Properties model = new Properties();
+		if (templateConfigValue != null) {
+			model.putAll(valuesCache.getValues(templateConfigValue.getRaw()));
 		}
-		else {
-			templateVariables = YamlUtils.getProperties(templateConfigValue.getRaw());
+		if (commandLineConfigValues != null) {
+			model.putAll(valuesCache.getValues(commandLineConfigValues.getRaw()));
 		}
-
-		Properties model = new Properties();
-		model.putAll(templateVariables);
-		model.putAll(commandLineOverrideProperties);
 		return model;
 	}
 
@@ -348,21 +371,18 @@ public class ReleaseService {
 	 * @param secondYml
 	 * @return merged yml
 	 */
+	@SuppressWarnings("unchecked")
 	private String mergeYml(String firstYml, String secondYml) {
-		final DumperOptions options = new DumperOptions();
-		options.setDefaultFlowStyle(DumperOptions.FlowStyle.FLOW);
-		options.setPrettyFlow(true);
-		Yaml yaml = new Yaml(options);
-
-		Map<String, Object> mergedResult = new LinkedHashMap<String, Object>();
+		Yaml yaml = mergeYaml.get();
 		Map<String, Object> firstYmlMap = (Map<String, Object>) yaml.load(firstYml);
-		YmlMergeUtils mergeUtils = new YmlMergeUtils();
-
-		mergeUtils.merge(mergedResult, firstYmlMap);
-
 		Map<String, Object> secondYmlMap = (Map<String, Object>) yaml.load(secondYml);
-		mergeUtils.merge(mergedResult, secondYmlMap);
-
+		List<YmlMergeUtils.Change> changes = log.isDebugEnabled() ? new ArrayList<>() : null;
+		Map<String, Object> mergedResult = YmlMergeUtils.merge(firstYmlMap, secondYmlMap, changes);
+		if (changes != null) {
+			for (YmlMergeUtils.Change change : changes) {
+				log.debug("Merged values: " + change);
+			}
+		}
 		return yaml.dump(mergedResult);
 	}
 
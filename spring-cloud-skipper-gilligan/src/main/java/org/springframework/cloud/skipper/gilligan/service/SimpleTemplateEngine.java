@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Renders templates that only contain variables, {@code {{name}}} and the unescaped
+ * {@code {{{name}}}} and {@code {{&name}}}. A template is compiled into its text
+ * fragments and variable names, so rendering it only looks up the variables and writes.
+ * Variables are looked up and HTML escaped the same way the Mustache engine does with a
+ * flat model, so a chart whose templates only use variables renders the same manifest
+ * with either engine. Sections, partials, comments and delimiter changes are rejected when
+ * the template is compiled.
+ *
+ * @author Mark Pollack
+ */
+@Component
+public class SimpleTemplateEngine implements TemplateEngine {
+
+	/**
+	 * The name of the engine.
+	 */
+	public static final String NAME = "simple";
+
+	/**
+	 * The number of characters a template collects before it writes them to the writer.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The escape of each character Mustache HTML escapes, indexed by the character.
+	 */
+	private static final String[] HTML_ESCAPES = new String['`' + 1];
+
+	static {
+		HTML_ESCAPES['&'] = "&amp;";
+		HTML_ESCAPES['\''] = "&#39;";
+		HTML_ESCAPES['"'] = "&quot;";
+		HTML_ESCAPES['<'] = "&lt;";
+		HTML_ESCAPES['>'] = "&gt;";
+		HTML_ESCAPES['`'] = "&#x60;";
+		HTML_ESCAPES['='] = "&#x3D;";
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public CompiledTemplate compile(String templateData) {
+		List<String> fragments = new ArrayList<>();
+		List<Variable> variables = new ArrayList<>();
+		int position = 0;
+		int start;
+		while ((start = templateData.indexOf("{{", position)) >= 0) {
+			fragments.add(templateData.substring(position, start));
+			boolean triple = templateData.startsWith("{{{", start);
+			String closing = triple ? "}}}" : "}}";
+			int end = templateData.indexOf(closing, start);
+			if (end < 0) {
+				throw new IllegalArgumentException("Unclosed tag on line " + line(templateData, start));
+			}
+			String name = templateData.substring(start + (triple ? 3 : 2), end).trim();
+			boolean escaped = !triple;
+			if (!triple && name.startsWith("&")) {
+				name = name.substring(1).trim();
+				escaped = false;
+			}
+			if (name.isEmpty() || "#^/>!=<{&".indexOf(name.charAt(0)) >= 0) {
+				throw new IllegalArgumentException("The " + NAME + " template engine only supports variables, "
+						+ "use the " + MustacheTemplateEngine.NAME + " engine for the tag on line "
+						+ line(templateData, start));
+			}
+			variables.add(new Variable(name, escaped, line(templateData, start)));
+			position = end + closing.length();
+		}
+		fragments.add(templateData.substring(position));
+		return new SimpleTemplate(fragments.toArray(new String[fragments.size()]),
+				variables.toArray(new Variable[variables.size()]));
+	}
+
+	private static int line(String templateData, int index) {
+		int line = 1;
+		for (int i = 0; i < index; i++) {
+			if (templateData.charAt(i) == '\n') {
+				line++;
+			}
+		}
+		return line;
+	}
+
+	/**
+	 * Append the text HTML escaped in a single pass, copying the runs of characters between
+	 * escaped characters unchanged.
+	 */
+	private static void appendEscaped(String text, StringBuilder output) {
+		int start = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			String escape = c < HTML_ESCAPES.length ? HTML_ESCAPES[c] : null;
+			if (escape != null) {
+				output.append(text, start, i).append(escape);
+				start = i + 1;
+			}
+		}
+		output.append(text, start, text.length());
+	}
+
+	/**
+	 * A template compiled into its text fragments and the variables between them. The
+	 * output is collected and written in chunks of up to {@link #BUFFER_SIZE} characters,
+	 * rather than with a write for every fragment and value.
+	 */
+	private static class SimpleTemplate implements CompiledTemplate {
+
+		private final String[] fragments;
+
+		private final Variable[] variables;
+
+		private final int fragmentsLength;
+
+		SimpleTemplate(String[] fragments, Variable[] variables) {
+			this.fragments = fragments;
+			this.variables = variables;
+			int length = 0;
+			for (String fragment : fragments) {
+				length += fragment.length();
+			}
+			this.fragmentsLength = length;
+		}
+
+		@Override
+		public void execute(Map<?, ?> model, Writer writer) throws IOException {
+			StringBuilder output = new StringBuilder(Math.min(fragmentsLength + 32 * variables.length, BUFFER_SIZE));
+			for (int i = 0; i < variables.length; i++) {
+				output.append(fragments[i]);
+				Object value = model.get(variables[i].name);
+				if (value == null) {
+					throw new IllegalArgumentException(
+							"No value for '" + variables[i].name + "' on line " + variables[i].line);
+				}
+				if (variables[i].escaped) {
+					appendEscaped(value.toString(), output);
+				}
+				else {
+					output.append(value);
+				}
+				if (output.length() >= BUFFER_SIZE) {
+					writer.write(output.toString());
+					output.setLength(0);
+				}
+			}
+			output.append(fragments[variables.length]);
+			writer.write(output.toString());
+		}
+	}
+
+	/**
+	 * A variable of a template.
+	 */
+	private static class Variable {
+
+		private final String name;
+
+		private final boolean escaped;
+
+		private final int line;
+
+		Variable(String name, boolean escaped, int line) {
+			this.name = name;
+			this.escaped = escaped;
+			this.line = line;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.cloud.skipper.gilligan.util.ContentHashUtils;
+import org.springframework.cloud.skipper.gilligan.util.LruMap;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the compiled templates of the {@code gilligan.template-cache.size} most recently
+ * rendered template texts, keyed by the template engine and the SHA-256 digest of the
+ * text, so a chart that was rendered before is only executed. Compiled templates are
+ * thread safe and shared by all requests. Hits and misses are published as
+ * {@code gilligan.templates.cache.*} metrics.
+ *
+ * @author Mark Pollack
+ */
+@Component
+public class TemplateCache implements PublicMetrics {
+
+	private final Map<String, TemplateEngine> engines = new HashMap<>();
+
+	private final Map<String, TemplateEngine.CompiledTemplate> templates;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	@Autowired
+	public TemplateCache(List<TemplateEngine> engines, @Value("${gilligan.template-cache.size:256}") int maxSize) {
+		for (TemplateEngine engine : engines) {
+			this.engines.put(engine.getName(), engine);
+		}
+		this.templates = new LruMap<>(maxSize);
+	}
+
+	/**
+	 * Return the template compiled by the named engine for the given template text,
+	 * compiling it on a miss.
+	 * @param engineName the name of the template engine, {@literal null} for the Mustache
+	 * engine
+	 * @param templateData the template text
+	 * @return the compiled template
+	 * @throws IllegalArgumentException if there is no engine of that name
+	 */
+	public TemplateEngine.CompiledTemplate getTemplate(String engineName, String templateData) {
+		return getTemplate(engineName, templateData, ContentHashUtils.sha256Hex(templateData));
+	}
+
+	/**
+	 * Return the template compiled by the named engine for the given template text,
+	 * compiling it on a miss. Used by callers that already hashed the template text.
+	 * @param engineName the name of the template engine, {@literal null} for the Mustache
+	 * engine
+	 * @param templateData the template text
+	 * @param digest the SHA-256 digest of the template text as computed by
+	 * {@link ContentHashUtils#sha256Hex(String)}
+	 * @return the compiled template
+	 * @throws IllegalArgumentException if there is no engine of that name
+	 */
+	public TemplateEngine.CompiledTemplate getTemplate(String engineName, String templateData, String digest) {
+		TemplateEngine engine = engines.get(engineName != null ? engineName : MustacheTemplateEngine.NAME);
+		if (engine == null) {
+			throw new IllegalArgumentException(
+					"Unknown template engine '" + engineName + "', available engines are " + engines.keySet());
+		}
+		String key = engine.getName() + ":" + digest;
+		TemplateEngine.CompiledTemplate template;
+		synchronized (templates) {
+			template = templates.get(key);
+		}
+		if (template != null) {
+			hitCount.incrementAndGet();
+			return template;
+		}
+		missCount.incrementAndGet();
+		template = engine.compile(templateData);
+		synchronized (templates) {
+			templates.put(key, template);
+		}
+		return template;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		int size;
+		synchronized (templates) {
+			size = templates.size();
+		}
+		return Arrays.asList(new Metric<Number>("gilligan.templates.cache.hits", hitCount.get()),
+				new Metric<Number>("gilligan.templates.cache.misses", missCount.get()),
+				new Metric<Number>("gilligan.templates.cache.size", size));
+	}
+}
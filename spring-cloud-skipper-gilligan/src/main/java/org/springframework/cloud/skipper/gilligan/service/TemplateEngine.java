@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Compiles chart templates into reusable objects that render the manifest of a template.
+ * A chart selects its engine by name with the {@code engine} field of its metadata.
+ *
+ * @author Mark Pollack
+ */
+public interface TemplateEngine {
+
+	String getName();
+
+	/**
+	 * Compile the template text.
+	 * @param templateData the template text
+	 * @return the compiled template, safe to share between threads
+	 * @throws IllegalArgumentException if the text is not a valid template of this engine
+	 */
+	CompiledTemplate compile(String templateData);
+
+	/**
+	 * A compiled template.
+	 */
+	interface CompiledTemplate {
+
+		/**
+		 * Render the template with the given placeholder values.
+		 * @param model the placeholder values
+		 * @param writer the writer the output is written to
+		 * @throws IOException if the output can not be written
+		 */
+		void execute(Map<?, ?> model, Writer writer) throws IOException;
+
+		default String execute(Map<?, ?> model) {
+			StringWriter writer = new StringWriter();
+			try {
+				execute(model, writer);
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Could not render template", e);
+			}
+			return writer.toString();
+		}
+	}
+}
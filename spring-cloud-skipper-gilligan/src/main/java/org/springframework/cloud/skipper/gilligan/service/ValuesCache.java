@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.cloud.skipper.client.YamlUtils;
+import org.springframework.cloud.skipper.gilligan.util.ContentHashUtils;
+import org.springframework.cloud.skipper.gilligan.util.LruMap;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * Keeps the flattened properties of the {@code gilligan.values-cache.size} most recently
+ * used values YAML documents, keyed by the SHA-256 digest of the document, so chart
+ * default values that did not change between revisions are parsed only once. The cached
+ * values are shared by all requests and can not be modified. Hits and misses are
+ * published as {@code gilligan.values.cache.*} metrics.
+ *
+ * @author Mark Pollack
+ */
+@Component
+public class ValuesCache implements PublicMetrics {
+
+	private final Map<String, Map<String, Object>> values;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	@Autowired
+	public ValuesCache(@Value("${gilligan.values-cache.size:256}") int maxSize) {
+		this.values = new LruMap<>(maxSize);
+	}
+
+	/**
+	 * Return the flattened properties of the given values YAML, parsing it on a miss.
+	 * @param yamlString the values YAML, may be {@literal null}
+	 * @return an unmodifiable view of the properties
+	 * @see YamlUtils#getFlattenedMap(String)
+	 */
+	public Map<String, Object> getValues(String yamlString) {
+		if (!StringUtils.hasText(yamlString)) {
+			return Collections.emptyMap();
+		}
+		String digest = ContentHashUtils.sha256Hex(yamlString);
+		Map<String, Object> properties;
+		synchronized (values) {
+			properties = values.get(digest);
+		}
+		if (properties != null) {
+			hitCount.incrementAndGet();
+			return properties;
+		}
+		missCount.incrementAndGet();
+		properties = Collections.unmodifiableMap(YamlUtils.getFlattenedMap(yamlString));
+		synchronized (values) {
+			values.put(digest, properties);
+		}
+		return properties;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		int size;
+		synchronized (values) {
+			size = values.size();
+		}
+		return Arrays.asList(new Metric<Number>("gilligan.values.cache.hits", hitCount.get()),
+				new Metric<Number>("gilligan.values.cache.misses", missCount.get()),
+				new Metric<Number>("gilligan.values.cache.size", size));
+	}
+}
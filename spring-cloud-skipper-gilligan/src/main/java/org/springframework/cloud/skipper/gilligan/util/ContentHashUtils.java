@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.skipper.gilligan.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes content digests used to address stored and cached content.
+ *
+ * @author Mark Pollack
+ */
+public abstract class ContentHashUtils {
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Return the hex encoded SHA-256 digest of the UTF-8 bytes of the given text.
+	 * @param text the text to digest
+	 * @return the digest as 64 lower case hex characters
+	 */
+	public static String sha256Hex(String text) {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+		}
+		byte[] digest = messageDigest.digest(text.getBytes(StandardCharsets.UTF_8));
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes and applies line level deltas between two texts. A delta is a list of hunks,
+ * each a header line {@code <base line>,<deleted lines>,<inserted lines>} followed by the
+ * inserted lines, so its size tracks the size of the change rather than of the text.
+ *
+ * @author Mark Pollack
+ */
+public abstract class LineDeltaUtils {
+
+	/**
+	 * Above this many comparisons the changed region is replaced as a whole instead of
+	 * searching for the lines it has in common with the base.
+	 */
+	private static final long MAX_COMPARISONS = 1000000;
+
+	/**
+	 * Return the delta that turns the base text into the target text.
+	 * @param base the base text
+	 * @param target the target text
+	 * @return the delta, empty if the texts are equal
+	 */
+	public static String diff(String base, String target) {
+		String[] baseLines = base.split("\n", -1);
+		String[] targetLines = target.split("\n", -1);
+		int prefix = 0;
+		while (prefix < baseLines.length && prefix < targetLines.length
+				&& baseLines[prefix].equals(targetLines[prefix])) {
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < baseLines.length - prefix && suffix < targetLines.length - prefix
+				&& baseLines[baseLines.length - 1 - suffix].equals(targetLines[targetLines.length - 1 - suffix])) {
+			suffix++;
+		}
+		int baseCount = baseLines.length - prefix - suffix;
+		int targetCount = targetLines.length - prefix - suffix;
+		List<String> delta = new ArrayList<>();
+		if ((long) baseCount * targetCount > MAX_COMPARISONS) {
+			addHunk(delta, prefix, baseCount, targetLines, prefix, targetCount);
+			return String.join("\n", delta);
+		}
+
+		// Longest common subsequence of the lines between the common prefix and suffix
+		int[][] common = new int[baseCount + 1][targetCount + 1];
+		for (int i = baseCount - 1; i >= 0; i--) {
+			for (int j = targetCount - 1; j >= 0; j--) {
+				common[i][j] = baseLines[prefix + i].equals(targetLines[prefix + j]) ? common[i + 1][j + 1] + 1
+						: Math.max(common[i + 1][j], common[i][j + 1]);
+			}
+		}
+		int i = 0;
+		int j = 0;
+		int hunkBase = 0;
+		int hunkTarget = 0;
+		while (i < baseCount || j < targetCount) {
+			if (i < baseCount && j < targetCount && baseLines[prefix + i].equals(targetLines[prefix + j])) {
+				addHunk(delta, prefix + hunkBase, i - hunkBase, targetLines, prefix + hunkTarget, j - hunkTarget);
+				i++;
+				j++;
+				hunkBase = i;
+				hunkTarget = j;
+			}
+			else if (j < targetCount && (i == baseCount || common[i][j + 1] >= common[i + 1][j])) {
+				j++;
+			}
+			else {
+				i++;
+			}
+		}
+		addHunk(delta, prefix + hunkBase, i - hunkBase, targetLines, prefix + hunkTarget, j - hunkTarget);
+		return String.join("\n", delta);
+	}
+
+	/**
+	 * Apply a delta created by {@link #diff(String, String)} to its base text.
+	 * @param base the base text
+	 * @param delta the delta
+	 * @return the target text
+	 */
+	public static String apply(String base, String delta) {
+		if (delta.isEmpty()) {
+			return base;
+		}
+		String[] baseLines = base.split("\n", -1);
+		String[] deltaLines = delta.split("\n", -1);
+		List<String> lines = new ArrayList<>();
+		int copied = 0;
+		int k = 0;
+		while (k < deltaLines.length) {
+			String[] header = deltaLines[k++].split(",");
+			int start = Integer.parseInt(header[0]);
+			int insertCount = Integer.parseInt(header[2]);
+			for (; copied < start; copied++) {
+				lines.add(baseLines[copied]);
+			}
+			for (int n = 0; n < insertCount; n++) {
+				lines.add(deltaLines[k++]);
+			}
+			copied = start + Integer.parseInt(header[1]);
+		}
+		for (; copied < baseLines.length; copied++) {
+			lines.add(baseLines[copied]);
+		}
+		return String.join("\n", lines);
+	}
+
+	private static void addHunk(List<String> delta, int baseStart, int deleteCount, String[] targetLines,
+			int targetStart, int insertCount) {
+		if (deleteCount == 0 && insertCount == 0) {
+			return;
+		}
+		delta.add(baseStart + "," + deleteCount + "," + insertCount);
+		for (int n = 0; n < insertCount; n++) {
+			delta.add(targetLines[targetStart + n]);
+		}
+	}
+}
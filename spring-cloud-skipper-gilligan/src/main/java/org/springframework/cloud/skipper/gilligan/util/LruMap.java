@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map in access order that drops its least recently used entry once it holds more than
+ * a maximum number of entries. Not thread safe.
+ *
+ * @author Mark Pollack
+ */
+public class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+	private final int maxSize;
+
+	public LruMap(int maxSize) {
+		super(16, 0.75f, true);
+		this.maxSize = maxSize;
+	}
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+		return size() > maxSize;
+	}
+}
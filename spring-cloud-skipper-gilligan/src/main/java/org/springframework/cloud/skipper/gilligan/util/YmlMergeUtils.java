@@ -13,103 +13,185 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.springframework.cloud.skipper.gilligan.util;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 /**
- * Used from
+ * Deep merges YAML documents loaded as maps. Values of the second document override those
+ * of the first, nested maps are merged and lists are concatenated. Based on
  * https://github.com/cobbzilla/merge-yml/blob/master/src/main/java/org/cobbzilla/util/yml/YmlMerger.java
+ *
+ * The merge walks the documents with an explicit stack, so the depth of a document is not
+ * limited by the call stack. Neither document is modified. Only the maps on the path to an
+ * overridden value are copied, all other maps and lists of both documents are shared by
+ * the result.
+ *
  * @author Mark Pollack
  */
-public class YmlMergeUtils {
-
-	private static final Logger log = LoggerFactory.getLogger(YmlMergeUtils.class);
-
-	public YmlMergeUtils() {
+public abstract class YmlMergeUtils {
+
+	/**
+	 * Merge the second document into the first.
+	 * @param first the first document, may be {@literal null}
+	 * @param second the document whose values override those of the first, may be
+	 * {@literal null}
+	 * @return the merged document
+	 * @throws IllegalArgumentException if a map or list of the second document is merged
+	 * with a value of another type
+	 */
+	public static Map<String, Object> merge(Map<String, Object> first, Map<String, Object> second) {
+		return merge(first, second, null);
 	}
 
+	/**
+	 * Merge the second document into the first, reporting every value the second document
+	 * adds or overrides.
+	 * @param first the first document, may be {@literal null}
+	 * @param second the document whose values override those of the first, may be
+	 * {@literal null}
+	 * @param changes the list the changes are added to, {@literal null} to not report them
+	 * @return the merged document
+	 * @throws IllegalArgumentException if a map or list of the second document is merged
+	 * with a value of another type
+	 */
 	@SuppressWarnings("unchecked")
-	public void merge(Map<String, Object> mergedResult, Map<String, Object> yamlContents) {
-
-		if (yamlContents == null) {
-			return;
+	public static Map<String, Object> merge(Map<String, Object> first, Map<String, Object> second,
+			List<Change> changes) {
+		Map<String, Object> result = first != null ? new LinkedHashMap<>(first) : new LinkedHashMap<>();
+		Deque<MergeFrame> frames = new ArrayDeque<>();
+		if (second != null) {
+			frames.push(new MergeFrame(result, second, null));
 		}
-
-		for (String key : yamlContents.keySet()) {
-
-			Object yamlValue = yamlContents.get(key);
-			if (yamlValue == null) {
-				addToMergedResult(mergedResult, key, yamlValue);
-				continue;
-			}
-
-			Object existingValue = mergedResult.get(key);
-			if (existingValue != null) {
-				if (yamlValue instanceof Map) {
-					if (existingValue instanceof Map) {
-						merge((Map<String, Object>) existingValue, (Map<String, Object>) yamlValue);
-					}
-					else if (existingValue instanceof String) {
-						throw new IllegalArgumentException(
-								"Cannot merge complex element into a simple element: " + key);
-					}
-					else {
-						throw unknownValueType(key, yamlValue);
-					}
+		while (!frames.isEmpty()) {
+			MergeFrame frame = frames.pop();
+			for (Map.Entry<String, Object> entry : frame.overrides.entrySet()) {
+				String key = entry.getKey();
+				Object value = entry.getValue();
+				Object existingValue = frame.target.get(key);
+				String path = changes == null ? null : frame.path == null ? key : frame.path + "." + key;
+				if (value instanceof Map && existingValue instanceof Map) {
+					Map<String, Object> mergedMap = new LinkedHashMap<>((Map<String, Object>) existingValue);
+					frame.target.put(key, mergedMap);
+					frames.push(new MergeFrame(mergedMap, (Map<String, Object>) value, path));
 				}
-				else if (yamlValue instanceof List) {
-					mergeLists(mergedResult, key, yamlValue);
-
+				else if (value instanceof List && existingValue instanceof List) {
+					List<Object> mergedList = new ArrayList<>((List<Object>) existingValue);
+					mergedList.addAll((List<Object>) value);
+					frame.target.put(key, mergedList);
+					addChange(changes, Change.Type.APPENDED, path, existingValue, mergedList);
 				}
-				else if (yamlValue instanceof String || yamlValue instanceof Boolean || yamlValue instanceof Double
-						|| yamlValue instanceof Integer) {
-					log.info("overriding value of " + key + " with value " + yamlValue);
-					addToMergedResult(mergedResult, key, yamlValue);
-
+				else if (existingValue == null || value == null) {
+					frame.target.put(key, value);
+					addChange(changes, existingValue != null ? Change.Type.OVERRIDDEN : Change.Type.ADDED, path,
+							existingValue, value);
 				}
-				else {
-					throw unknownValueType(key, yamlValue);
+				else if (value instanceof Map) {
+					throw new IllegalArgumentException("Cannot merge complex element into a simple element: " + key);
 				}
-
-			}
-			else {
-				if (yamlValue instanceof Map || yamlValue instanceof List || yamlValue instanceof String
-						|| yamlValue instanceof Boolean || yamlValue instanceof Integer
-						|| yamlValue instanceof Double) {
-					log.info("adding new key->value: " + key + "->" + yamlValue);
-					addToMergedResult(mergedResult, key, yamlValue);
+				else if (value instanceof List) {
+					throw new IllegalArgumentException("Cannot merge a list with a non-list: " + key);
 				}
 				else {
-					throw unknownValueType(key, yamlValue);
+					frame.target.put(key, value);
+					addChange(changes, Change.Type.OVERRIDDEN, path, existingValue, value);
 				}
 			}
 		}
+		return result;
 	}
 
-	private IllegalArgumentException unknownValueType(String key, Object yamlValue) {
-		final String msg = "Cannot merge element of unknown type: " + key + ": " + yamlValue.getClass().getName();
-		log.error(msg);
-		return new IllegalArgumentException(msg);
+	private static void addChange(List<Change> changes, Change.Type type, String path, Object oldValue,
+			Object newValue) {
+		if (changes != null) {
+			changes.add(new Change(type, path, oldValue, newValue));
+		}
 	}
 
-	private Object addToMergedResult(Map<String, Object> mergedResult, String key, Object yamlValue) {
-		return mergedResult.put(key, yamlValue);
-	}
+	/**
+	 * A value added or overridden by the second document.
+	 */
+	public static class Change {
+
+		/**
+		 * The kind of change.
+		 */
+		public enum Type {
+			/**
+			 * A value with no value in the first document.
+			 */
+			ADDED,
+			/**
+			 * A value that replaces the value of the first document.
+			 */
+			OVERRIDDEN,
+			/**
+			 * A list whose elements are appended to the list of the first document.
+			 */
+			APPENDED
+		}
 
-	@SuppressWarnings("unchecked")
-	private void mergeLists(Map<String, Object> mergedResult, String key, Object yamlValue) {
-		if (!(yamlValue instanceof List && mergedResult.get(key) instanceof List)) {
-			throw new IllegalArgumentException("Cannot merge a list with a non-list: " + key);
+		private final Type type;
+
+		private final String path;
+
+		private final Object oldValue;
+
+		private final Object newValue;
+
+		Change(Type type, String path, Object oldValue, Object newValue) {
+			this.type = type;
+			this.path = path;
+			this.oldValue = oldValue;
+			this.newValue = newValue;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * Return the dotted path of the changed value.
+		 * @return the path
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		public Object getOldValue() {
+			return oldValue;
 		}
 
-		List<Object> originalList = (List<Object>) mergedResult.get(key);
-		originalList.addAll((List<Object>) yamlValue);
+		public Object getNewValue() {
+			return newValue;
+		}
+
+		@Override
+		public String toString() {
+			return type + " " + path + ": " + oldValue + " -> " + newValue;
+		}
 	}
 
+	/**
+	 * A map of the result and the map of the second document that is merged into it.
+	 */
+	private static class MergeFrame {
+
+		private final Map<String, Object> target;
+
+		private final Map<String, Object> overrides;
+
+		private final String path;
+
+		MergeFrame(Map<String, Object> target, Map<String, Object> overrides, String path) {
+			this.target = target;
+			this.overrides = overrides;
+			this.path = path;
+		}
+	}
 }
@@ -17,41 +17,131 @@
 package org.springframework.cloud.skipper.gilligan.util;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.NoSuchElementException;
 
 import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
 
 import org.springframework.cloud.skipper.rpc.domain.Deployment;
 import org.springframework.cloud.skipper.rpc.domain.DeploymentKind;
+import org.springframework.cloud.skipper.rpc.domain.Release;
 
 /**
  * @author Mark Pollack
  */
 public class YmlUtils {
 
+	/**
+	 * Immutable and shared by all threads.
+	 */
+	private static final ObjectReader deploymentKindReader = new YAMLMapper().readerFor(DeploymentKind.class);
+
 	public static List<Deployment> unmarshallDeployments(String manifests) {
+		List<Deployment> deploymentList = new ArrayList<>();
+		iterateDeployments(manifests).forEachRemaining(deploymentList::add);
+		return deploymentList;
+	}
 
+	/**
+	 * Parse every YAML document of the manifest into a {@link DeploymentKind}.
+	 * @param manifests the manifest text
+	 * @return the parsed documents in manifest order
+	 */
+	public static List<DeploymentKind> unmarshallDeploymentKinds(String manifests) {
 		List<DeploymentKind> deploymentKindList = new ArrayList<>();
-		YAMLMapper mapper = new YAMLMapper();
-		// TypeReference<DeploymentKind> typeReference = new
-		// TypeReference<DeploymentKind>();
-		try {
-			MappingIterator<DeploymentKind> it = mapper.readerFor(DeploymentKind.class).readValues(manifests);
-			while (it.hasNextValue()) {
-				DeploymentKind deploymentKind = it.next();
-				deploymentKindList.add(deploymentKind);
+		MappingIterator<DeploymentKind> it = readDeploymentKinds(new StringReader(manifests));
+		while (hasNextValue(it)) {
+			deploymentKindList.add(nextValue(it));
+		}
+		return deploymentKindList;
+	}
+
+	/**
+	 * Return an iterator that parses the deployments of the manifest one YAML document at
+	 * a time, as they are requested.
+	 * @param manifests the manifest text
+	 * @return the deployments in manifest order
+	 * @throws IllegalArgumentException from the iterator if a document can not be parsed
+	 */
+	public static Iterator<Deployment> iterateDeployments(String manifests) {
+		return iterateDeployments(new StringReader(manifests));
+	}
+
+	/**
+	 * Return an iterator that reads and parses the deployments of the manifest one YAML
+	 * document at a time, as they are requested. The reader is closed once the last
+	 * document was read.
+	 * @param manifests the reader of the manifest text
+	 * @return the deployments in manifest order
+	 * @throws IllegalArgumentException from the iterator if a document can not be parsed
+	 */
+	public static Iterator<Deployment> iterateDeployments(Reader manifests) {
+		MappingIterator<DeploymentKind> it = readDeploymentKinds(manifests);
+		return new Iterator<Deployment>() {
+
+			@Override
+			public boolean hasNext() {
+				return hasNextValue(it);
+			}
+
+			@Override
+			public Deployment next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return nextValue(it).getDeployment();
 			}
+		};
+	}
 
+	/**
+	 * Return the deployments of the release's manifest. The manifest is parsed only if the
+	 * release does not hold its parsed deployments yet, which are then kept on the
+	 * release.
+	 * @param release the release
+	 * @return the deployments in manifest order
+	 */
+	public static List<Deployment> getDeployments(Release release) {
+		if (release.getDeploymentKinds() == null) {
+			release.setDeploymentKinds(unmarshallDeploymentKinds(release.getManifest()));
+		}
+		List<Deployment> deploymentList = new ArrayList<>(release.getDeploymentKinds().size());
+		for (DeploymentKind deploymentKind : release.getDeploymentKinds()) {
+			deploymentList.add(deploymentKind.getDeployment());
+		}
+		return deploymentList;
+	}
+
+	private static MappingIterator<DeploymentKind> readDeploymentKinds(Reader manifests) {
+		try {
+			return deploymentKindReader.readValues(manifests);
 		}
 		catch (IOException e) {
 			throw new IllegalArgumentException("Can't parse Release manifest YAML", e);
 		}
+	}
 
-		List<Deployment> deploymentList = deploymentKindList.stream().map(DeploymentKind::getDeployment)
-				.collect(Collectors.toList());
-		return deploymentList;
+	private static boolean hasNextValue(MappingIterator<DeploymentKind> it) {
+		try {
+			return it.hasNextValue();
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Can't parse Release manifest YAML", e);
+		}
+	}
+
+	private static DeploymentKind nextValue(MappingIterator<DeploymentKind> it) {
+		try {
+			return it.nextValue();
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Can't parse Release manifest YAML", e);
+		}
 	}
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.repository;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.springframework.cloud.skipper.rpc.domain.Release;
+import org.springframework.util.FileCopyUtils;
+import org.springframework.util.StreamUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+/**
+ * @author Mark Pollack
+ */
+public class FileManifestRepositoryTests {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void testManifestWrittenInBackground() throws Exception {
+		FileManifestRepository manifestRepository = new FileManifestRepository(temporaryFolder.getRoot().getPath(),
+				false, true, 1024, 30000);
+		manifestRepository.store(createRelease(1, "first"));
+		manifestRepository.store(createRelease(1, "second"));
+		manifestRepository.store(createRelease(2, "other"));
+		manifestRepository.flush();
+
+		File manifestFile = new File(temporaryFolder.getRoot(), "log-v1/manifest.yml");
+		assertThat(FileCopyUtils.copyToString(new FileReader(manifestFile))).isEqualTo("second");
+		assertThat(new File(temporaryFolder.getRoot(), "log-v1").list()).containsExactly("manifest.yml");
+		assertThat(manifestRepository.metrics()).extracting("name", "value")
+				.containsExactly(tuple("gilligan.manifests.queue", 0), tuple("gilligan.manifests.failures", 0L));
+
+		manifestRepository.delete(createRelease(1, null));
+		manifestRepository.flush();
+		assertThat(new File(temporaryFolder.getRoot(), "log-v1")).doesNotExist();
+		assertThat(new File(temporaryFolder.getRoot(), "log-v2/manifest.yml")).exists();
+		manifestRepository.shutdown();
+	}
+
+	@Test
+	public void testCompressedManifest() throws Exception {
+		FileManifestRepository manifestRepository = new FileManifestRepository(temporaryFolder.getRoot().getPath(),
+				true, false, 1024, 30000);
+		manifestRepository.store(createRelease(1, "kind: Deployment"));
+		manifestRepository.flush();
+
+		File manifestFile = new File(temporaryFolder.getRoot(), "log-v1/manifest.yml.gz");
+		try (InputStream stream = new GZIPInputStream(new FileInputStream(manifestFile))) {
+			assertThat(StreamUtils.copyToString(stream, StandardCharsets.UTF_8)).isEqualTo("kind: Deployment");
+		}
+		manifestRepository.shutdown();
+	}
+
+	@Test
+	public void testManifestArchivedAsDeltas() throws Exception {
+		FileManifestRepository manifestRepository = new FileManifestRepository(temporaryFolder.getRoot().getPath(),
+				true, false, 1024, 30000);
+		List<String> manifests = new ArrayList<>();
+		for (int version = 1; version <= 2 * ReleasePayloadStore.SNAPSHOT_INTERVAL; version++) {
+			StringBuilder manifest = new StringBuilder();
+			for (int line = 0; line < 40; line++) {
+				manifest.append("line").append(line).append(": ").append(line == 20 ? version : line).append('\n');
+			}
+			manifests.add(manifest.toString());
+			manifestRepository.store(createRelease(version, manifest.toString()));
+		}
+		manifestRepository.flush();
+
+		int snapshots = 0;
+		for (int version = 1; version <= manifests.size(); version++) {
+			File releaseDir = new File(temporaryFolder.getRoot(), "log-v" + version);
+			if (new File(releaseDir, "manifest.yml.gz").exists()) {
+				snapshots++;
+			}
+			else {
+				assertThat(releaseDir.list()).containsExactly("manifest.delta.gz");
+			}
+			assertThat(manifestRepository.load(createRelease(version, null))).isEqualTo(manifests.get(version - 1));
+		}
+		assertThat(snapshots).isEqualTo(2);
+
+		// Later versions no longer depend on the manifests deleted by retention
+		for (int version = 1; version <= 3; version++) {
+			manifestRepository.delete(createRelease(version, null));
+		}
+		manifestRepository.flush();
+		assertThat(new File(temporaryFolder.getRoot(), "log-v4").list()).containsExactly("manifest.yml.gz");
+		for (int version = 4; version <= manifests.size(); version++) {
+			assertThat(manifestRepository.load(createRelease(version, null))).isEqualTo(manifests.get(version - 1));
+		}
+		assertThat(manifestRepository.load(createRelease(1, null))).isNull();
+
+		// Replacing a manifest keeps the next version as it was
+		manifestRepository.store(createRelease(5, "kind: Deployment"));
+		manifestRepository.flush();
+		assertThat(manifestRepository.load(createRelease(5, null))).isEqualTo("kind: Deployment");
+		assertThat(manifestRepository.load(createRelease(6, null))).isEqualTo(manifests.get(5));
+		manifestRepository.shutdown();
+	}
+
+	@Test
+	public void testWriteFailureReportedByFlush() throws Exception {
+		File manifestsFile = temporaryFolder.newFile("manifests");
+		FileManifestRepository manifestRepository = new FileManifestRepository(manifestsFile.getPath(), false,
+				false, 1024, 30000);
+		manifestRepository.store(createRelease(1, "kind: Deployment"));
+		assertThatThrownBy(manifestRepository::flush).isInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("Could not archive manifests");
+		assertThat(manifestRepository.metrics()).extracting("name", "value")
+				.contains(tuple("gilligan.manifests.failures", 1L));
+
+		// A failure is only reported once
+		manifestRepository.flush();
+		manifestRepository.shutdown();
+		assertThatThrownBy(() -> manifestRepository.store(createRelease(2, "kind: Deployment")))
+				.isInstanceOf(IllegalStateException.class).hasMessageContaining("stopped");
+	}
+
+	private Release createRelease(int version, String manifest) {
+		Release release = new Release();
+		release.setName("log");
+		release.setVersion(version);
+		release.setManifest(manifest);
+		return release;
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.repository;
+
+import java.util.Properties;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisOperations;
+
+/**
+ * Test helpers for asserting how the release stores use Redis.
+ *
+ * @author Mark Pollack
+ */
+public abstract class RedisTestUtils {
+
+	/**
+	 * Count the number of commands Redis executes while performing the given action.
+	 * @param operations the Redis operations
+	 * @param action the action to count the commands of
+	 * @return the number of commands
+	 */
+	public static long countCommands(RedisOperations<?, ?> operations, Runnable action) {
+		operations.execute((RedisConnection connection) -> {
+			connection.resetConfigStats();
+			return "OK";
+		});
+		action.run();
+		Properties commandStats = operations
+				.execute((RedisConnection connection) -> connection.info("commandstats"));
+		long calls = 0;
+		for (String name : commandStats.stringPropertyNames()) {
+			if (name.startsWith("cmdstat_") && !name.equals("cmdstat_config")) {
+				String stats = commandStats.getProperty(name);
+				calls += Long.parseLong(stats.substring("calls=".length(), stats.indexOf(',')));
+			}
+		}
+		return calls;
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.skipper.gilligan.GilliganApplication;
+import org.springframework.cloud.skipper.rpc.domain.Info;
+import org.springframework.cloud.skipper.rpc.domain.Release;
+import org.springframework.cloud.skipper.rpc.domain.Status;
+import org.springframework.cloud.skipper.rpc.domain.StatusCode;
+import org.springframework.data.keyvalue.core.KeyValueOperations;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the hash and Smile release record formats.
+ *
+ * @author Mark Pollack
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = GilliganApplication.class)
+public class ReleaseRecordStoreTests<K, V> {
+
+	private static final int RELEASE_COUNT = 50;
+
+	@Autowired
+	private RedisOperations<K, V> operations;
+
+	@Autowired
+	private KeyValueOperations keyValueTemplate;
+
+	private KeyValueReleaseRecordStore hashStore;
+
+	private SmileReleaseRecordStore smileStore;
+
+	@Before
+	public void setUp() {
+		flushDb();
+		hashStore = new KeyValueReleaseRecordStore(keyValueTemplate);
+		smileStore = new SmileReleaseRecordStore(operations, keyValueTemplate);
+	}
+
+	@After
+	public void flushDb() {
+		operations.execute((RedisConnection connection) -> {
+			connection.flushDb();
+			return "OK";
+		});
+	}
+
+	@Test
+	public void testSmileRecordIsSmallerThanHash() {
+		Release hashRelease = createRelease(1);
+		hashStore.save(hashRelease);
+		Release smileRelease = createRelease(1);
+		smileStore.save(smileRelease);
+
+		long hashSize = operations.execute((RedisConnection connection) -> {
+			long size = 0;
+			Map<byte[], byte[]> fields = connection.hGetAll(bytes("releases:" + hashRelease.getId()));
+			for (Map.Entry<byte[], byte[]> field : fields.entrySet()) {
+				size += field.getKey().length + field.getValue().length;
+			}
+			return size;
+		});
+		long smileSize = operations.execute(
+				(RedisConnection connection) -> connection.get(bytes("releases:record:" + smileRelease.getId())).length)
+				.longValue();
+		assertThat(smileSize).isLessThan(hashSize);
+
+		Release loadedRelease = smileStore.findOne(smileRelease.getId());
+		assertThat(loadedRelease.getName()).isEqualTo("log");
+		assertThat(loadedRelease.getInfo().getStatus().getStatusCode()).isEqualTo(StatusCode.DEPLOYED);
+		assertThat(loadedRelease.getInfo().getFirstDeployed()).isEqualTo(smileRelease.getInfo().getFirstDeployed());
+	}
+
+	@Test
+	public void testSmileRecordsReadInOneCommand() {
+		List<String> hashIds = new ArrayList<>();
+		List<String> smileIds = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			Release hashRelease = createRelease(i);
+			hashStore.save(hashRelease);
+			hashIds.add(hashRelease.getId());
+			Release smileRelease = createRelease(i);
+			smileStore.save(smileRelease);
+			smileIds.add(smileRelease.getId());
+		}
+		assertThat(RedisTestUtils.countCommands(operations, () -> assertThat(smileStore.findAll(smileIds)).hasSize(10)))
+				.isEqualTo(1);
+		assertThat(RedisTestUtils.countCommands(operations, () -> assertThat(hashStore.findAll(hashIds)).hasSize(10)))
+				.isGreaterThanOrEqualTo(10);
+	}
+
+	@Test
+	public void testRecordsReadBackUnchanged() {
+		assertRoundTrip(hashStore);
+		assertRoundTrip(smileStore);
+	}
+
+	@Test
+	public void testDeletedRecordsStayDeleted() {
+		for (ReleaseRecordStore store : new ReleaseRecordStore[] { hashStore, smileStore }) {
+			Release release = createRelease(1);
+			store.save(release);
+			store.delete(release.getId());
+			assertThat(store.findOne(release.getId())).isNull();
+		}
+	}
+
+	@Test
+	public void testHashRecordMigratedOnRead() {
+		Release release = createRelease(1);
+		hashStore.save(release);
+
+		Release migratedRelease = smileStore.findOne(release.getId());
+		assertThat(migratedRelease.getId()).isEqualTo(release.getId());
+		assertThat(migratedRelease.getVersion()).isEqualTo(1);
+		assertThat(hashStore.findOne(release.getId())).isNull();
+		assertThat(smileStore.findOne(release.getId()).getName()).isEqualTo("log");
+	}
+
+	private void assertRoundTrip(ReleaseRecordStore store) {
+		List<Release> releases = new ArrayList<>();
+		List<String> ids = new ArrayList<>();
+		for (int i = 1; i <= RELEASE_COUNT; i++) {
+			Release release = createRelease(i);
+			store.save(release);
+			releases.add(release);
+			ids.add(release.getId());
+		}
+		for (Release release : releases) {
+			release.getInfo().setDescription("Upgrade complete");
+		}
+		store.saveAll(releases);
+		List<Release> loadedReleases = store.findAll(ids);
+		assertThat(loadedReleases).hasSize(RELEASE_COUNT);
+		for (int i = 0; i < RELEASE_COUNT; i++) {
+			Release release = releases.get(i);
+			Release loadedRelease = loadedReleases.get(i);
+			assertThat(loadedRelease.getId()).isEqualTo(release.getId());
+			assertThat(loadedRelease.getName()).isEqualTo(release.getName());
+			assertThat(loadedRelease.getVersion()).isEqualTo(release.getVersion());
+			assertThat(loadedRelease.getDeploymentId()).isEqualTo(release.getDeploymentId());
+			assertThat(loadedRelease.getInfo().getDescription()).isEqualTo("Upgrade complete");
+			assertThat(loadedRelease.getInfo().getFirstDeployed()).isEqualTo(release.getInfo().getFirstDeployed());
+			assertThat(loadedRelease.getInfo().getStatus().getStatusCode()).isEqualTo(StatusCode.DEPLOYED);
+			assertThat(loadedRelease.getInfo().getStatus().getPlatformStatus())
+					.isEqualTo(release.getInfo().getStatus().getPlatformStatus());
+		}
+	}
+
+	private Release createRelease(int version) {
+		Release release = new Release();
+		release.setName("log");
+		release.setVersion(version);
+		release.setDeploymentId("log-v" + version + ".log");
+		Info info = new Info();
+		info.setFirstDeployed(new Date());
+		info.setLastDeployed(new Date());
+		info.setDescription("Install complete");
+		Status status = new Status();
+		status.setStatusCode(StatusCode.DEPLOYED);
+		status.setPlatformStatus("All Applications deployed successfully");
+		info.setStatus(status);
+		release.setInfo(info);
+		return release;
+	}
+
+	private static byte[] bytes(String key) {
+		return key.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -15,9 +15,20 @@
  */
 package org.springframework.cloud.skipper.gilligan.repository;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import org.junit.After;
 import org.junit.Before;
@@ -27,13 +38,21 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.cloud.skipper.gilligan.GilliganApplication;
+import org.springframework.cloud.skipper.gilligan.service.ReleaseLocks;
+import org.springframework.cloud.skipper.gilligan.service.ReleaseRetention;
+import org.springframework.cloud.skipper.gilligan.util.ContentHashUtils;
 import org.springframework.cloud.skipper.gilligan.util.YmlUtils;
 import org.springframework.cloud.skipper.rpc.domain.*;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.catchThrowable;
 import static org.assertj.core.api.Assertions.entry;
 
 /**
@@ -49,6 +68,21 @@ public class ReleaseRepositoryTests<K, V> {
 	@Autowired
 	private ReleaseRepository releaseRepository;
 
+	@Autowired
+	private StringRedisTemplate redisTemplate;
+
+	@Autowired
+	private ReleaseCache releaseCache;
+
+	@Autowired
+	private ReleaseRecordStore recordStore;
+
+	@Autowired
+	private ManifestRepository manifestRepository;
+
+	@Autowired
+	private ReleaseLocks releaseLocks;
+
 	@Before
 	@After
 	public void setUp() {
@@ -57,6 +91,7 @@ public class ReleaseRepositoryTests<K, V> {
 			connection.flushDb();
 			return "OK";
 		});
+		releaseCache.clear();
 	}
 
 	@Test
@@ -83,6 +118,28 @@ public class ReleaseRepositoryTests<K, V> {
 		assertThat(deployments).hasSize(2);
 	}
 
+	@Test
+	public void testDeploymentsIteratedLazily() {
+		String text = loadYml("/deserialization/multipleDeployments.yml") + "\n---\nkind: [unclosed\n";
+		Iterator<Deployment> deployments = YmlUtils.iterateDeployments(text);
+		assertThat(deployments.next().getName()).isNotEmpty();
+		assertThat(deployments.next().getName()).isNotEmpty();
+		assertThatThrownBy(deployments::next).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	public void testParsedDeploymentsKeptOnRelease() {
+		Release release = new Release();
+		release.setManifest(loadYml("/deserialization/multipleDeployments.yml"));
+		List<Deployment> deployments = YmlUtils.getDeployments(release);
+		assertThat(release.getDeploymentKinds()).hasSize(2);
+		assertThat(YmlUtils.getDeployments(release)).containsExactlyElementsOf(deployments);
+
+		release.setManifest(loadYml("/deserialization/log.yml"));
+		assertThat(release.getDeploymentKinds()).isNull();
+		assertThat(YmlUtils.getDeployments(release)).hasSize(1);
+	}
+
 	private String loadYml(String file) {
 		return new Scanner(ReleaseRepositoryTests.class.getResourceAsStream(file), "UTF-8")
 				.useDelimiter("\\A").next();
@@ -113,6 +170,565 @@ public class ReleaseRepositoryTests<K, V> {
 
 		Release retrievedRelease = releaseRepository.findOne(release.getId());
 		assertThat(retrievedRelease.getName()).isNotBlank();
+		assertThat(retrievedRelease.getManifest()).isNull();
+
+		releaseRepository.loadPayload(retrievedRelease);
+		assertThat(retrievedRelease.getManifest()).isEqualTo(text);
+		assertThat(retrievedRelease.getChart()).isNull();
+	}
+
+	@Test
+	public void testPayloadLoadedOnDemand() {
+		Release release = createRelease("log", 1);
+		release.setChart(createChart("log", "count: {{count}}"));
+		Config config = new Config();
+		config.setRaw("count: 2");
+		release.setConfig(config);
+		String manifest = loadYml("/deserialization/log.yml");
+		release.setManifest(manifest);
+		releaseRepository.save(release);
+
+		Release latestRelease = releaseRepository.findLatestRelease("log");
+		assertThat(latestRelease.getChart()).isNull();
+		assertThat(latestRelease.getManifest()).isNull();
+
+		releaseRepository.loadPayload(latestRelease);
+		assertThat(latestRelease.getChart().getMetadata().getName()).isEqualTo("log");
+		assertThat(latestRelease.getChart().getTemplates()[0].getData()).isEqualTo("count: {{count}}");
+		assertThat(latestRelease.getConfig().getRaw()).isEqualTo("count: 2");
+		assertThat(latestRelease.getManifest()).isEqualTo(manifest);
+	}
+
+	@Test
+	public void testIndexedLookupDoesNotDependOnReleaseCount() {
+		releaseRepository.save(createRelease("log", 1));
+		releaseRepository.save(createRelease("log", 2));
+
+		long callsWithFewReleases = countRedisCalls(() -> releaseRepository.findLatestRelease("log"));
+
+		for (int i = 0; i < 100; i++) {
+			releaseRepository.save(createRelease("other" + i, 1));
+			releaseRepository.save(createRelease("other" + i, 2));
+		}
+
+		releaseCache.clear();
+		long callsWithManyReleases = countRedisCalls(() -> releaseRepository.findLatestRelease("log"));
+		assertThat(callsWithManyReleases).isEqualTo(callsWithFewReleases);
+		releaseCache.clear();
+		assertThat(countRedisCalls(() -> releaseRepository.findByNameAndVersion("log", 1)))
+				.isEqualTo(callsWithFewReleases);
+
+		assertThat(releaseRepository.findLatestRelease("log").getVersion()).isEqualTo(2);
+		assertThat(releaseRepository.findByNameAndVersion("log", 1).getVersion()).isEqualTo(1);
+		assertThat(releaseRepository.findByNameAndVersion("log", 3)).isNull();
+		assertThat(releaseRepository.findLatestRelease("missing")).isNull();
+	}
+
+	@Test
+	public void testHistoryPaging() {
+		for (int version = 1; version <= 5; version++) {
+			releaseRepository.save(createRelease("log", version));
+		}
+		releaseRepository.save(createRelease("other", 1));
+
+		assertThat(releaseRepository.findHistory("log", 0, 2)).extracting(Release::getVersion).containsExactly(4, 5);
+		assertThat(releaseRepository.findHistory("log", 2, 2)).extracting(Release::getVersion).containsExactly(2, 3);
+		assertThat(releaseRepository.findHistory("log", 4, 2)).extracting(Release::getVersion).containsExactly(1);
+		assertThat(releaseRepository.findHistory("log", 0, 0)).extracting(Release::getVersion)
+				.containsExactly(1, 2, 3, 4, 5);
+		assertThat(releaseRepository.findHistory("missing", 0, 0)).isEmpty();
+	}
+
+	@Test
+	public void testSelectByLabels() {
+		Release release = createRelease("ticktock", 1);
+		release.setManifest(loadYml("/deserialization/labeledDeployments.yml"));
+		releaseRepository.save(release);
+		releaseRepository.save(createRelease("log", 1));
+
+		assertThat(releaseRepository.select(Collections.singletonMap("streamName", "ticktock")))
+				.extracting(Deployment::getName).containsExactlyInAnyOrder("log", "time");
+
+		Map<String, String> selector = new HashMap<>();
+		selector.put("streamName", "ticktock");
+		selector.put("streamType", "sink");
+		Deployment[] deployments = releaseRepository.select(selector);
+		assertThat(deployments).extracting(Deployment::getName).containsExactly("log");
+		assertThat(deployments[0].getApplicationProperties()).containsEntry("log.level", "WARN");
+
+		selector.put("streamType", "processor");
+		assertThat(releaseRepository.select(selector)).isEmpty();
+		assertThat(releaseRepository.select(Collections.emptyMap())).isEmpty();
+	}
+
+	@Test
+	public void testPayloadDeduplicatedAcrossRevisions() {
+		String manifest = loadYml("/deserialization/log.yml");
+		Chart chart = createChart("ticktock", "name: ticktock");
+		chart.setDependencies(new Chart[] { createChart("log", "name: log"), createChart("time", "name: time") });
+		Release release = createRelease("ticktock", 1);
+		release.setChart(chart);
+		release.setManifest(manifest);
+		releaseRepository.save(release);
+		int blobCount = redisTemplate.keys("releases:blob:*").size();
+		// chart, three templates, config and manifest
+		assertThat(blobCount).isEqualTo(6);
+
+		Release sameChartRelease = createRelease("ticktock", 2);
+		sameChartRelease.setChart(chart);
+		sameChartRelease.setManifest(manifest);
+		releaseRepository.save(sameChartRelease);
+		assertThat(redisTemplate.keys("releases:blob:*")).hasSize(blobCount);
+
+		chart.getDependencies()[1].getTemplates()[0].setData("name: time2");
+		Release changedTemplateRelease = createRelease("ticktock", 3);
+		changedTemplateRelease.setChart(chart);
+		changedTemplateRelease.setManifest(manifest);
+		releaseRepository.save(changedTemplateRelease);
+		// only the new chart and the changed template are added
+		assertThat(redisTemplate.keys("releases:blob:*")).hasSize(blobCount + 2);
+
+		Release loadedRelease = releaseRepository.loadPayload(releaseRepository.findByNameAndVersion("ticktock", 2));
+		assertThat(loadedRelease.getManifest()).isEqualTo(manifest);
+		assertThat(loadedRelease.getChart().getTemplates()[0].getData()).isEqualTo("name: ticktock");
+		assertThat(loadedRelease.getChart().getDependencies()[1].getTemplates()[0].getData())
+				.isEqualTo("name: time");
+		loadedRelease = releaseRepository.loadPayload(releaseRepository.findLatestRelease("ticktock"));
+		assertThat(loadedRelease.getChart().getDependencies()[0].getTemplates()[0].getData())
+				.isEqualTo("name: log");
+		assertThat(loadedRelease.getChart().getDependencies()[1].getTemplates()[0].getData())
+				.isEqualTo("name: time2");
+	}
+
+	@Test
+	public void testUnitOfWorkCoalescesSaves() {
+		Release release = releaseRepository.save(createRelease("log", 1));
+		long calls = countRedisCalls(() -> releaseRepository.doInUnitOfWork(() -> {
+			release.getInfo().setDescription("Undeploying");
+			releaseRepository.save(release);
+			release.getInfo().getStatus().setStatusCode(StatusCode.DELETED);
+			releaseRepository.save(release);
+			release.getInfo().setDescription("Delete complete");
+			releaseRepository.save(release);
+			Release storedRelease = releaseRepository.findOne(release.getId());
+			assertThat(storedRelease.getInfo().getStatus().getStatusCode()).isEqualTo(StatusCode.DEPLOYED);
+			return storedRelease;
+		}));
+		long singleSaveCalls = countRedisCalls(() -> releaseRepository.save(release));
+		// The three saves are flushed as one write, next to the single lookup
+		assertThat(calls).isLessThan(3 * singleSaveCalls);
+
+		Release storedRelease = releaseRepository.findOne(release.getId());
+		assertThat(storedRelease.getInfo().getStatus().getStatusCode()).isEqualTo(StatusCode.DELETED);
+		assertThat(storedRelease.getInfo().getDescription()).isEqualTo("Delete complete");
+	}
+
+	@Test
+	public void testFailedSaveReleasesRevision() {
+		releaseRepository.save(createRelease("ticktock", 1));
+		Release release = createRelease("ticktock", 2);
+		release.setManifest("kind: [Deployment");
+		assertThatThrownBy(() -> releaseRepository.save(release)).isInstanceOf(RuntimeException.class);
+		assertThat(release.getId()).isNull();
+		assertThat(releaseRepository.findLatestRelease("ticktock").getVersion()).isEqualTo(1);
+		assertThat(releaseRepository.findHistory("ticktock", 0, 0)).hasSize(1);
+		assertThat(redisTemplate.keys("releases:payload:*")).hasSize(1);
+
+		// The claimed version is handed back, so the revision can be stored again
+		release.setManifest(loadYml("/deserialization/labeledDeployments.yml"));
+		releaseRepository.save(release);
+		assertThat(releaseRepository.findLatestRelease("ticktock").getVersion()).isEqualTo(2);
+		assertThat(releaseRepository.select(Collections.singletonMap("streamName", "ticktock"))).hasSize(2);
+	}
+
+	@Test
+	public void testUnitOfWorkKeepsOperationFailureWhenFlushFails() {
+		Release release = releaseRepository.save(createRelease("log", 1));
+		ReleaseRepositoryImpl repository = new ReleaseRepositoryImpl();
+		ReflectionTestUtils.setField(repository, "releaseCache", releaseCache);
+		ReflectionTestUtils.setField(repository, "recordStore", new ReleaseRecordStore() {
+
+			@Override
+			public void save(Release release) {
+				recordStore.save(release);
+			}
+
+			@Override
+			public void saveStatus(Release release) {
+				recordStore.saveStatus(release);
+			}
+
+			@Override
+			public void saveAll(Collection<Release> releases) {
+				throw new IllegalStateException("Flush failed");
+			}
+
+			@Override
+			public void delete(String id) {
+				recordStore.delete(id);
+			}
+
+			@Override
+			public Release findOne(String id) {
+				return recordStore.findOne(id);
+			}
+
+			@Override
+			public List<Release> findAll(Collection<String> ids) {
+				return recordStore.findAll(ids);
+			}
+		});
+		Throwable thrown = catchThrowable(() -> repository.doInUnitOfWork(() -> {
+			release.getInfo().setDescription("Deploy failed");
+			repository.save(release);
+			throw new IllegalArgumentException("Deploy failed");
+		}));
+		assertThat(thrown).isInstanceOf(IllegalArgumentException.class).hasMessage("Deploy failed");
+		assertThat(thrown.getSuppressed()).hasSize(1);
+		assertThat(thrown.getSuppressed()[0]).hasMessage("Flush failed");
+	}
+
+	@Test
+	public void testSaveStatusIsVisibleInsideUnitOfWork() {
+		Release release = releaseRepository.save(createRelease("log", 1));
+		releaseRepository.doInUnitOfWork(() -> {
+			release.setDeploymentId("log-v1");
+			release.getInfo().setDescription("Install complete");
+			releaseRepository.saveStatus(release);
+			Release storedRelease = releaseRepository.findOne(release.getId());
+			assertThat(storedRelease.getDeploymentId()).isEqualTo("log-v1");
+			assertThat(storedRelease.getInfo().getDescription()).isEqualTo("Install complete");
+			assertThat(storedRelease.getName()).isEqualTo("log");
+			return storedRelease;
+		});
+	}
+
+	@Test
+	public void testLatestReleaseServedFromNearCache() throws InterruptedException {
+		Release release = releaseRepository.save(createRelease("log", 1));
+		assertThat(releaseRepository.findLatestRelease("log").getVersion()).isEqualTo(1);
+		assertThat(countRedisCalls(() -> releaseRepository.findLatestRelease("log"))).isZero();
+
+		// Every hit is a copy that can be changed without affecting the cache
+		releaseRepository.findLatestRelease("log").getInfo().setDescription("Changed locally");
+		assertThat(releaseRepository.findLatestRelease("log").getInfo().getDescription()).isNull();
+
+		// A write through the repository evicts the release on this node
+		releaseRepository.save(createRelease("log", 2));
+		assertThat(releaseRepository.findLatestRelease("log").getVersion()).isEqualTo(2);
+
+		// A write on another node is seen once its invalidation message arrives
+		assertThat(releaseRepository.findByNameAndVersion("log", 1).getInfo().getDescription()).isNull();
+		release.getInfo().setDescription("Changed on another node");
+		recordStore.save(release);
+		assertThat(releaseRepository.findByNameAndVersion("log", 1).getInfo().getDescription()).isNull();
+		redisTemplate.convertAndSend(ReleaseCache.INVALIDATION_CHANNEL, "other-node:log");
+		String description = null;
+		for (int i = 0; i < 50 && description == null; i++) {
+			Thread.sleep(100);
+			description = releaseRepository.findByNameAndVersion("log", 1).getInfo().getDescription();
+		}
+		assertThat(description).isEqualTo("Changed on another node");
+	}
+
+	@Test
+	public void testNearCacheOnlySkipsReleasesEvictedWhileLoading() {
+		ReleaseCache cache = new ReleaseCache(redisTemplate, 10, 0);
+		Release release = releaseRepository.save(createRelease("log", 1));
+		// An eviction of another name does not keep the loaded release out of the cache
+		cache.get("log", 1, () -> {
+			cache.evict("time");
+			return release;
+		});
+		assertThat(cache.get("log", 1, () -> null)).isNotNull();
+		// An eviction of the loaded name does
+		cache.get("time", 1, () -> {
+			cache.evict("time");
+			return release;
+		});
+		assertThat(cache.get("time", 1, () -> null)).isNull();
+	}
+
+	@Test
+	public void testNearCacheForgetsEvictionsOnceLoadsFinish() {
+		ReleaseCache cache = new ReleaseCache(redisTemplate, 10, 0);
+		Release release = releaseRepository.save(createRelease("log", 1));
+		Map<?, ?> evictedGenerations = (Map<?, ?>) ReflectionTestUtils.getField(cache, "evictedGenerations");
+		// Evictions while no release is loaded are not remembered
+		for (int i = 0; i < 100; i++) {
+			cache.evict("release-" + i);
+		}
+		assertThat(evictedGenerations).isEmpty();
+		// Evictions during a load are remembered only until the load finished
+		cache.get("log", 1, () -> {
+			for (int i = 0; i < 100; i++) {
+				cache.evict("release-" + i);
+			}
+			assertThat(evictedGenerations).hasSize(100);
+			return release;
+		});
+		assertThat(evictedGenerations).isEmpty();
+	}
+
+	@Test
+	public void testNearCacheEntriesExpire() throws InterruptedException {
+		ReleaseCache cache = new ReleaseCache(redisTemplate, 10, 50);
+		Release release = releaseRepository.save(createRelease("log", 1));
+		cache.get("log", 1, () -> release);
+		assertThat(cache.get("log", 1, () -> null)).isNotNull();
+		Thread.sleep(100);
+		assertThat(cache.get("log", 1, () -> null)).isNull();
+	}
+
+	@Test
+	public void testFindDeployments() {
+		Release release = createRelease("ticktock", 1);
+		release.setManifest(loadYml("/deserialization/labeledDeployments.yml"));
+		release = releaseRepository.save(release);
+		assertThat(releaseRepository.findDeployments(release.getId())).extracting(Deployment::getName)
+				.containsExactly("log", "time");
+
+		StringBuilder manifest = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			manifest.append(loadYml("/deserialization/log.yml").replace("name: log", "name: log" + i));
+		}
+		Release largeRelease = createRelease("ticktock", 2);
+		largeRelease.setManifest(manifest.toString());
+		largeRelease = releaseRepository.save(largeRelease);
+		List<Deployment> deployments = releaseRepository.findDeployments(largeRelease.getId());
+		assertThat(deployments).hasSize(40);
+		assertThat(deployments.get(39).getName()).isEqualTo("log39");
+
+		releaseRepository.pruneRevisions("ticktock", 1);
+		assertThat(releaseRepository.findDeployments(release.getId())).isEmpty();
+		assertThat(releaseRepository.findDeployments("unknown")).isEmpty();
+	}
+
+	@Test
+	public void testPruneRevisions() {
+		for (int version = 1; version <= 4; version++) {
+			Release release = createRelease("ticktock", version);
+			release.setManifest(loadYml("/deserialization/labeledDeployments.yml"));
+			releaseRepository.save(release);
+		}
+		Map<String, String> selector = Collections.singletonMap("streamType", "sink");
+		assertThat(releaseRepository.select(selector)).hasSize(4);
+
+		assertThat(releaseRepository.pruneRevisions("ticktock", 2)).extracting(Release::getVersion)
+				.containsExactlyInAnyOrder(1, 2);
+		assertThat(releaseRepository.select(selector)).hasSize(2);
+		Release prunedRelease = releaseRepository.loadPayload(releaseRepository.findByNameAndVersion("ticktock", 2));
+		assertThat(prunedRelease.getInfo().getStatus().getStatusCode()).isEqualTo(StatusCode.DEPLOYED);
+		assertThat(prunedRelease.getManifest()).isNull();
+		assertThat(releaseRepository.loadPayload(releaseRepository.findByNameAndVersion("ticktock", 3))
+				.getManifest()).isNotNull();
+		assertThat(releaseRepository.findHistory("ticktock", 0, 0)).hasSize(4);
+
+		// Revisions reduced before are not visited again
+		assertThat(releaseRepository.pruneRevisions("ticktock", 2)).isEmpty();
+		releaseRepository.save(createRelease("ticktock", 5));
+		assertThat(releaseRepository.pruneRevisions("ticktock", 2)).extracting(Release::getVersion)
+				.containsExactly(3);
+		assertThat(releaseRepository.pruneRevisions("missing", 2)).isEmpty();
+	}
+
+	@Test
+	public void testBlobsDeletedWithLastRevision() {
+		String manifest = loadYml("/deserialization/labeledDeployments.yml");
+		for (int version = 1; version <= 3; version++) {
+			Chart chart = createChart("ticktock", "name: ticktock" + version);
+			chart.setDependencies(new Chart[] { createChart("log", "name: log") });
+			Release release = createRelease("ticktock", version);
+			release.setChart(chart);
+			release.setManifest(manifest.replace("WARN", "WARN" + version));
+			releaseRepository.save(release);
+		}
+
+		new ReleaseRetention(releaseRepository, manifestRepository, releaseLocks, 1).apply("ticktock");
+		assertThat(redisTemplate.hasKey(blobKey("name: ticktock1"))).isFalse();
+		assertThat(redisTemplate.hasKey(blobKey("name: ticktock2"))).isFalse();
+		assertThat(redisTemplate.hasKey(blobKey(manifest.replace("WARN", "WARN1")))).isFalse();
+		assertThat(redisTemplate.hasKey(blobKey("name: ticktock3"))).isTrue();
+		assertThat(redisTemplate.hasKey(blobKey("name: log"))).isTrue();
+		// the chart, its two templates, the config and the manifest of the kept revision
+		assertThat(redisTemplate.keys("releases:blob:*")).hasSize(5);
+		assertThat(redisTemplate.opsForHash().size("releases:blob-refs")).isEqualTo(5);
+		Release release = releaseRepository.loadPayload(releaseRepository.findByNameAndVersion("ticktock", 3));
+		assertThat(release.getManifest()).isEqualTo(manifest.replace("WARN", "WARN3"));
+		assertThat(release.getChart().getDependencies()[0].getTemplates()[0].getData()).isEqualTo("name: log");
+	}
+
+	@Test
+	public void testBackfillRecountsBlobReferences() {
+		for (int version = 1; version <= 2; version++) {
+			Release release = createRelease("ticktock", version);
+			release.setChart(createChart("ticktock", "name: ticktock" + version));
+			release.setManifest(loadYml("/deserialization/log.yml"));
+			releaseRepository.save(release);
+		}
+		// Stored by a version that did not count references
+		redisTemplate.delete("releases:blob-refs");
+		redisTemplate.opsForValue().set(blobKey("name: pruned"), "name: pruned");
+
+		assertThat(releaseRepository.backfillLegacyReleases()).isZero();
+		assertThat(redisTemplate.hasKey(blobKey("name: pruned"))).isFalse();
+		releaseRepository.pruneRevisions("ticktock", 1);
+		assertThat(redisTemplate.hasKey(blobKey("name: ticktock1"))).isFalse();
+		assertThat(redisTemplate.hasKey(blobKey("name: ticktock2"))).isTrue();
+		assertThat(redisTemplate.hasKey(blobKey(loadYml("/deserialization/log.yml")))).isTrue();
+	}
+
+	@Test
+	public void testManifestStoredAsDeltas() {
+		String manifest = loadYml("/deserialization/labeledDeployments.yml");
+		List<String> manifests = new ArrayList<>();
+		for (int version = 1; version <= 2 * ReleasePayloadStore.SNAPSHOT_INTERVAL; version++) {
+			Release release = createRelease("ticktock", version);
+			release.setManifest(manifest.replace("WARN", "WARN" + version));
+			releaseRepository.save(release);
+			manifests.add(release.getManifest());
+		}
+		int snapshots = 0;
+		for (int version = 1; version <= manifests.size(); version++) {
+			Release release = releaseRepository.findByNameAndVersion("ticktock", version);
+			if (redisTemplate.opsForHash().hasKey("releases:payload:" + release.getId(), "manifest")) {
+				snapshots++;
+			}
+			assertThat(releaseRepository.loadPayload(release).getManifest()).isEqualTo(manifests.get(version - 1));
+		}
+		assertThat(snapshots).isEqualTo(2);
+
+		// Retention keeps the remaining manifests readable
+		releaseRepository.pruneRevisions("ticktock", 3);
+		for (int version = manifests.size() - 2; version <= manifests.size(); version++) {
+			Release release = releaseRepository.loadPayload(releaseRepository.findByNameAndVersion("ticktock", version));
+			assertThat(release.getManifest()).isEqualTo(manifests.get(version - 1));
+		}
+	}
+
+	@Test
+	public void testConcurrentRevisionsConflict() throws Exception {
+		releaseRepository.save(createRelease("log", 1));
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Release>> results = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			String name = i % 2 == 0 ? "log" : "time" + i;
+			int version = i % 2 == 0 ? 2 : 1;
+			results.add(executor.submit(() -> releaseRepository.save(createRelease(name, version))));
+		}
+		int conflicts = 0;
+		for (Future<Release> result : results) {
+			try {
+				result.get();
+			}
+			catch (ExecutionException e) {
+				assertThat(e.getCause()).isInstanceOf(OptimisticLockingFailureException.class)
+						.hasMessageContaining("current version is v2");
+				conflicts++;
+			}
+		}
+		executor.shutdown();
+		// Only one of the four updates of log wins, the other releases do not contend
+		assertThat(conflicts).isEqualTo(3);
+		assertThat(releaseRepository.findHistory("log", 0, 0)).extracting(Release::getVersion).containsExactly(1, 2);
+
+		assertThatThrownBy(() -> releaseRepository.save(createRelease("log", 4)))
+				.isInstanceOf(OptimisticLockingFailureException.class);
+		assertThat(releaseRepository.save(createRelease("log", 3)).getVersion()).isEqualTo(3);
+	}
+
+	@Test
+	public void testLegacyReleasesBackfilled() {
+		String manifest = loadYml("/deserialization/labeledDeployments.yml");
+		storeLegacyRelease("legacy-1", "ticktock", 1, manifest);
+		releaseRepository.save(createRelease("log", 1));
+		assertThat(releaseRepository.findLatestRelease("ticktock")).isNull();
+
+		assertThat(releaseRepository.backfillLegacyReleases()).isEqualTo(1);
+		assertThat(redisTemplate.opsForHash().keys("releases:legacy-1")).doesNotContain("manifest", "config.raw",
+				"chart.metadata.name");
+		Release release = releaseRepository.loadPayload(releaseRepository.findOne("legacy-1"));
+		assertThat(release.getInfo().getStatus().getStatusCode()).isEqualTo(StatusCode.DEPLOYED);
+		assertThat(release.getManifest()).isEqualTo(manifest);
+		assertThat(release.getConfig().getRaw()).isEqualTo("count: 2");
+		assertThat(release.getChart().getMetadata().getName()).isEqualTo("ticktock");
+		assertThat(release.getChart().getTemplates()[0].getData()).isEqualTo("count: {{count}}");
+		assertThat(releaseRepository.select(Collections.singletonMap("streamName", "ticktock")))
+				.extracting(Deployment::getName).containsExactlyInAnyOrder("log", "time");
+
+		assertThat(releaseRepository.findLatestRelease("ticktock").getId()).isEqualTo("legacy-1");
+		assertThat(releaseRepository.findByNameAndVersion("ticktock", 1).getId()).isEqualTo("legacy-1");
+
+		assertThat(releaseRepository.backfillLegacyReleases()).isZero();
+		assertThat(releaseRepository.save(createRelease("ticktock", 2)).getVersion()).isEqualTo(2);
+	}
+
+	@Test
+	public void testBackfillSkippedOnceCompleted() {
+		releaseRepository.save(createRelease("log", 1));
+		storeLegacyRelease("legacy-1", "ticktock", 1, loadYml("/deserialization/labeledDeployments.yml"));
+		assertThat(releaseRepository.backfillLegacyReleases()).isEqualTo(1);
+
+		// Later starts only read the layout marker instead of visiting every release
+		storeLegacyRelease("legacy-2", "time", 1, loadYml("/deserialization/log.yml"));
+		assertThat(RedisTestUtils.countCommands(operations,
+				() -> assertThat(releaseRepository.backfillLegacyReleases()).isZero())).isEqualTo(1);
+		assertThat(releaseRepository.findLatestRelease("time")).isNull();
+	}
+
+	/**
+	 * Store a release the way it was stored before its payload was kept apart from the
+	 * release record.
+	 */
+	private void storeLegacyRelease(String id, String name, int version, String manifest) {
+		Map<String, String> fields = new HashMap<>();
+		fields.put("_class", Release.class.getName());
+		fields.put("id", id);
+		fields.put("name", name);
+		fields.put("version", String.valueOf(version));
+		fields.put("info.status.statusCode", StatusCode.DEPLOYED.name());
+		fields.put("chart.metadata.name", name);
+		fields.put("chart.templates.[0].name", name + ".yml");
+		fields.put("chart.templates.[0].data", "count: {{count}}");
+		fields.put("config.raw", "count: 2");
+		fields.put("manifest", manifest);
+		redisTemplate.opsForHash().putAll("releases:" + id, fields);
+		redisTemplate.opsForSet().add("releases", id);
+	}
+
+	private String blobKey(String content) {
+		return "releases:blob:" + ContentHashUtils.sha256Hex(content);
+	}
+
+	private Chart createChart(String name, String templateData) {
+		Chart chart = new Chart();
+		Metadata metadata = new Metadata();
+		metadata.setName(name);
+		chart.setMetadata(metadata);
+		Template template = new Template();
+		template.setName(name + ".yml");
+		template.setData(templateData);
+		chart.setTemplates(new Template[] { template });
+		return chart;
+	}
+
+	private Release createRelease(String name, int version) {
+		Release release = new Release();
+		release.setName(name);
+		release.setVersion(version);
+		Info info = new Info();
+		Status status = new Status();
+		status.setStatusCode(StatusCode.DEPLOYED);
+		info.setStatus(status);
+		release.setInfo(info);
+		return release;
+	}
+
+	/**
+	 * Count the number of commands Redis executes while performing the given lookup.
+	 */
+	private long countRedisCalls(Supplier<Release> lookup) {
+		return RedisTestUtils.countCommands(operations, () -> assertThat(lookup.get()).isNotNull());
 	}
 
 }
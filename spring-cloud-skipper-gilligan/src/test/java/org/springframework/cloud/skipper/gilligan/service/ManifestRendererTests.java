@@ -0,0 +1,358 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import org.springframework.cloud.skipper.rpc.domain.Chart;
+import org.springframework.cloud.skipper.rpc.domain.Metadata;
+import org.springframework.cloud.skipper.rpc.domain.Template;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.springframework.cloud.skipper.gilligan.service.MetricsTestUtils.metric;
+
+/**
+ * @author Mark Pollack
+ */
+public class ManifestRendererTests {
+
+	@Test
+	public void testParallelRenderingMatchesSerialRendering() {
+		Chart chart = chart("umbrella", 3);
+		Chart[] subCharts = new Chart[20];
+		for (int i = 0; i < subCharts.length; i++) {
+			subCharts[i] = chart("sub" + i, 3);
+			subCharts[i].setDependencies(new Chart[] { chart("sub" + i + "-nested", 2) });
+		}
+		chart.setDependencies(subCharts);
+		Properties model = new Properties();
+		model.setProperty("count", "3");
+
+		ManifestRenderer serialRenderer = renderer(0, 0);
+		ManifestRenderer parallelRenderer = renderer(4, 64);
+		try {
+			String manifest = serialRenderer.render(chart, model);
+			assertThat(manifest).startsWith("\n---\n# Source: umbrella-0.yml\nname: umbrella-0\ncount: 3\n");
+			assertThat(manifest.indexOf("# Source: sub0-nested-1.yml")).isLessThan(manifest.indexOf("# Source: sub1-0.yml"));
+			for (int i = 0; i < 10; i++) {
+				assertThat(parallelRenderer.render(chart, model)).isEqualTo(manifest);
+			}
+		}
+		finally {
+			serialRenderer.shutdown();
+			parallelRenderer.shutdown();
+		}
+	}
+
+	@Test
+	public void testRenderingStreamedToWriter() {
+		Chart chart = chart("umbrella", 2);
+		chart.setDependencies(new Chart[] { chart("sub", 2) });
+		Properties model = new Properties();
+		model.setProperty("count", "1");
+		for (int threads : new int[] { 0, 2 }) {
+			ManifestRenderer renderer = renderer(threads, 16);
+			try {
+				StringWriter writer = new StringWriter();
+				writer.write("# header");
+				renderer.render(chart, model, writer);
+				assertThat(writer.toString()).isEqualTo("# header" + renderer.render(chart, model));
+			}
+			finally {
+				renderer.shutdown();
+			}
+		}
+	}
+
+	@Test
+	public void testUnchangedTemplatesReused() {
+		Chart chart = chart("app", 0);
+		chart.setTemplates(new Template[] { template("log.yml", "level: {{log.level}}\n"),
+				template("time.yml", "count: {{count}}\n{{#enabled}}enabled: true\n{{/enabled}}") });
+		Properties model = new Properties();
+		model.setProperty("log.level", "INFO");
+		model.setProperty("count", "1");
+		model.setProperty("enabled", "true");
+		ManifestRenderer renderer = renderer(0, 16);
+		ManifestRenderer uncachedRenderer = renderer(0, 0);
+
+		assertThat(renderer.render(chart, model)).isEqualTo(uncachedRenderer.render(chart, model));
+		model.setProperty("count", "2");
+		assertThat(renderer.render(chart, model)).isEqualTo(uncachedRenderer.render(chart, model));
+		assertThat(metric(renderer, "gilligan.render.templates.executed")).isEqualTo(3);
+		assertThat(metric(renderer, "gilligan.render.templates.reused")).isEqualTo(1);
+
+		model.setProperty("unused", "value");
+		assertThat(renderer.render(chart, model)).isEqualTo(uncachedRenderer.render(chart, model));
+		model.remove("enabled");
+		assertThat(renderer.render(chart, model)).isEqualTo(uncachedRenderer.render(chart, model));
+		assertThat(metric(renderer, "gilligan.render.templates.executed")).isEqualTo(4);
+		assertThat(metric(renderer, "gilligan.render.templates.reused")).isEqualTo(4);
+	}
+
+	@Test
+	public void testCachedOutputBoundByCharacters() {
+		Chart chart = chart("app", 3);
+		Properties model = new Properties();
+		model.setProperty("count", "1");
+		ManifestRenderer renderer = new ManifestRenderer(templateCache(), 0, 16, 50, 0, 0, 0, 0, 0);
+		ManifestRenderer uncachedRenderer = renderer(0, 0);
+
+		// Each template renders to 21 characters, so only the 2 most recent outputs are kept
+		assertThat(renderer.render(chart, model)).isEqualTo(uncachedRenderer.render(chart, model));
+		assertThat(metric(renderer, "gilligan.render.cache.chars")).isEqualTo(42);
+
+		chart.getTemplates()[2].setData("# " + new String(new char[64]).replace('\0', '-') + "\ncount: {{count}}\n");
+		assertThat(renderer.render(chart, model)).isEqualTo(uncachedRenderer.render(chart, model));
+		assertThat(renderer.render(chart, model)).isEqualTo(uncachedRenderer.render(chart, model));
+		// The output of the last template is larger than the bound and is never kept
+		assertThat(metric(renderer, "gilligan.render.cache.chars")).isEqualTo(42);
+		assertThat(metric(renderer, "gilligan.render.templates.executed")).isEqualTo(7);
+		assertThat(metric(renderer, "gilligan.render.templates.reused")).isEqualTo(2);
+	}
+
+	@Test
+	public void testLargeTemplatesStreamed() {
+		Chart chart = chart("app", 3);
+		chart.getTemplates()[1].setData("# " + new String(new char[64]).replace('\0', '-') + "\ncount: {{count}}\n");
+		Properties model = new Properties();
+		model.setProperty("count", "1");
+		ManifestRenderer renderer = new ManifestRenderer(templateCache(), 2, 16, 4194304, 0, 0, 0, 0, 64);
+		ManifestRenderer uncachedRenderer = renderer(0, 0);
+		try {
+			String manifest = uncachedRenderer.render(chart, model);
+			assertThat(renderer.render(chart, model)).isEqualTo(manifest);
+			assertThat(renderer.render(chart, model)).isEqualTo(manifest);
+			// The large template is executed every time, as its output is not cached
+			assertThat(metric(renderer, "gilligan.render.templates.executed")).isEqualTo(4);
+			assertThat(metric(renderer, "gilligan.render.templates.reused")).isEqualTo(2);
+		}
+		finally {
+			renderer.shutdown();
+		}
+	}
+
+	@Test
+	public void testTemplateEngineOfChartMetadata() {
+		Chart chart = chart("app", 1);
+		Chart subChart = chart("sub", 1);
+		subChart.setMetadata(new Metadata());
+		subChart.getMetadata().setEngine(SimpleTemplateEngine.NAME);
+		subChart.getTemplates()[0].setData("count: {{count}}\n{{#enabled}}enabled: true\n{{/enabled}}");
+		chart.setDependencies(new Chart[] { subChart });
+		Properties model = new Properties();
+		model.setProperty("count", "1");
+		ManifestRenderer renderer = renderer(0, 0);
+
+		assertThatThrownBy(() -> renderer.render(chart, model)).isInstanceOf(IllegalArgumentException.class)
+				.hasMessageContaining("line 2");
+		subChart.getTemplates()[0].setData("count: {{count}}\n");
+		assertThat(renderer.render(chart, model)).contains("# Source: sub-0.yml\ncount: 1\n");
+		subChart.getMetadata().setEngine("velocity");
+		assertThatThrownBy(() -> renderer.render(chart, model)).isInstanceOf(IllegalArgumentException.class)
+				.hasMessageContaining("velocity");
+	}
+
+	@Test
+	public void testChartLimits() {
+		Chart chart = chart("app", 2);
+		Chart subChart = chart("sub", 2);
+		subChart.setDependencies(new Chart[] { chart("nested", 1) });
+		chart.setDependencies(new Chart[] { subChart });
+		Properties model = new Properties();
+		model.setProperty("count", "1");
+
+		assertThat(new ManifestRenderer(templateCache(), 0, 0, 0, 5, 2, 0, 0, 0).render(chart, model))
+				.contains("# Source: nested-0.yml");
+		ManifestRenderer templatesRenderer = new ManifestRenderer(templateCache(), 0, 0, 0, 4, 2, 0, 0, 0);
+		assertThatThrownBy(() -> templatesRenderer.render(chart, model)).isInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("5 templates");
+		assertThat(templatesRenderer.render(subChart, model)).contains("# Source: nested-0.yml");
+		assertThat(metric(templatesRenderer, "gilligan.render.limits.templates")).isEqualTo(1);
+
+		ManifestRenderer depthRenderer = new ManifestRenderer(templateCache(), 0, 0, 0, 0, 1, 0, 0, 0);
+		assertThatThrownBy(() -> depthRenderer.render(chart, model)).isInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("deeper than the limit of 1");
+		assertThat(depthRenderer.render(subChart, model)).contains("# Source: nested-0.yml");
+		assertThat(metric(depthRenderer, "gilligan.render.limits.depth")).isEqualTo(1);
+	}
+
+	@Test
+	public void testOutputSizeLimit() {
+		Chart chart = chart("app", 4);
+		Properties model = new Properties();
+		model.setProperty("count", "1");
+		int size = renderer(0, 0).render(chart, model).length();
+		for (int threads : new int[] { 0, 2 }) {
+			for (int cacheSize : new int[] { 0, 16 }) {
+				ManifestRenderer renderer = new ManifestRenderer(templateCache(), threads, cacheSize, 4194304, 0, 0,
+						size, 0, 0);
+				try {
+					model.setProperty("count", "1");
+					assertThat(renderer.render(chart, model)).hasSize(size);
+					model.setProperty("count", "12");
+					assertThatThrownBy(() -> renderer.render(chart, model)).isInstanceOf(IllegalStateException.class)
+							.hasMessageContaining("limit of " + size + " characters");
+					assertThat(metric(renderer, "gilligan.render.limits.output-size")).isEqualTo(1);
+					assertThat(metric(renderer, "gilligan.render.output.max")).isEqualTo(size);
+				}
+				finally {
+					renderer.shutdown();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testTimeout() {
+		TemplateEngine slowEngine = new TemplateEngine() {
+
+			@Override
+			public String getName() {
+				return "slow";
+			}
+
+			@Override
+			public CompiledTemplate compile(String templateData) {
+				return (model, writer) -> {
+					try {
+						Thread.sleep(50);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					writer.write(templateData);
+				};
+			}
+		};
+		Chart chart = chart("app", 2);
+		chart.setMetadata(new Metadata());
+		chart.getMetadata().setEngine("slow");
+		for (int threads : new int[] { 0, 2 }) {
+			ManifestRenderer renderer = new ManifestRenderer(
+					new TemplateCache(Collections.singletonList(slowEngine), 16), threads, 0, 0, 0, 0, 0, 20, 0);
+			try {
+				assertThatThrownBy(() -> renderer.render(chart, new Properties()))
+						.isInstanceOf(IllegalStateException.class).hasMessageContaining("within 20 ms");
+				assertThat(metric(renderer, "gilligan.render.limits.timeout")).isEqualTo(1);
+			}
+			finally {
+				renderer.shutdown();
+			}
+		}
+	}
+
+	@Test
+	public void testRenderingCancelledWhenWriteFails() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch interrupted = new CountDownLatch(1);
+		TemplateEngine blockingEngine = new TemplateEngine() {
+
+			@Override
+			public String getName() {
+				return "blocking";
+			}
+
+			@Override
+			public CompiledTemplate compile(String templateData) {
+				return (model, writer) -> {
+					try {
+						if (templateData.contains("-0")) {
+							// Fails to be written only once the next template is rendering
+							started.await(5, TimeUnit.SECONDS);
+						}
+						else {
+							started.countDown();
+							Thread.sleep(10000);
+						}
+					}
+					catch (InterruptedException e) {
+						interrupted.countDown();
+						Thread.currentThread().interrupt();
+					}
+					writer.write(templateData);
+				};
+			}
+		};
+		Chart chart = chart("app", 3);
+		chart.setMetadata(new Metadata());
+		chart.getMetadata().setEngine("blocking");
+		ManifestRenderer renderer = new ManifestRenderer(
+				new TemplateCache(Collections.singletonList(blockingEngine), 16), 2, 0, 0, 0, 0, 0, 0, 0);
+		Writer failingWriter = new Writer() {
+
+			@Override
+			public void write(char[] buffer, int offset, int length) throws IOException {
+				throw new IOException("Disk full");
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		try {
+			assertThatThrownBy(() -> renderer.render(chart, new Properties(), failingWriter))
+					.isInstanceOf(IllegalStateException.class).hasRootCauseInstanceOf(IOException.class);
+			// The template still rendering on the pool is interrupted rather than left to finish
+			assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+		}
+		finally {
+			renderer.shutdown();
+		}
+	}
+
+	private Chart chart(String name, int templateCount) {
+		Template[] templates = new Template[templateCount];
+		for (int i = 0; i < templateCount; i++) {
+			templates[i] = template(name + "-" + i + ".yml", "name: " + name + "-" + i + "\ncount: {{count}}\n");
+		}
+		Chart chart = new Chart();
+		chart.setTemplates(templates);
+		return chart;
+	}
+
+	private Template template(String name, String data) {
+		Template template = new Template();
+		template.setName(name);
+		template.setData(data);
+		return template;
+	}
+
+	/**
+	 * A renderer with the default cache bounds and stream threshold, without render limits.
+	 */
+	private static ManifestRenderer renderer(int threads, int cacheSize) {
+		return new ManifestRenderer(templateCache(), threads, cacheSize, 4194304, 0, 0, 0, 0, 65536);
+	}
+
+	private static TemplateCache templateCache() {
+		return new TemplateCache(Arrays.asList(new MustacheTemplateEngine(), new SimpleTemplateEngine()), 16);
+	}
+}
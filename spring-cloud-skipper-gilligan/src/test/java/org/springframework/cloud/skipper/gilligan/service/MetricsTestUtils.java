@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Test helpers for reading the metrics Gilligan components publish.
+ *
+ * @author Mark Pollack
+ */
+public abstract class MetricsTestUtils {
+
+	/**
+	 * Return the value of the named metric.
+	 * @param metrics the component publishing the metric
+	 * @param name the name of the metric
+	 * @return the value of the metric, -1 if it is not published
+	 */
+	public static long metric(PublicMetrics metrics, String name) {
+		for (Metric<?> metric : metrics.metrics()) {
+			if (metric.getName().equals(name)) {
+				return metric.getValue().longValue();
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.springframework.cloud.skipper.gilligan.service.MetricsTestUtils.metric;
+
+/**
+ * @author Mark Pollack
+ */
+public class ReleaseLocksTests {
+
+	private JedisConnectionFactory connectionFactory;
+
+	private StringRedisTemplate redisTemplate;
+
+	private ExecutorService executor = Executors.newFixedThreadPool(8);
+
+	@Before
+	public void setUp() {
+		connectionFactory = new JedisConnectionFactory();
+		connectionFactory.afterPropertiesSet();
+		redisTemplate = new StringRedisTemplate(connectionFactory);
+		redisTemplate.delete(redisTemplate.keys("releases:lock:*"));
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		connectionFactory.destroy();
+	}
+
+	@Test
+	public void testOperationsOnOneReleaseDoNotInterleave() throws Exception {
+		assertOperationsDoNotInterleave(new ReleaseLocks(redisTemplate, 16, 10000, false, 60000));
+	}
+
+	@Test
+	public void testOperationsOnOneReleaseDoNotInterleaveWithRedis() throws Exception {
+		assertOperationsDoNotInterleave(new ReleaseLocks(redisTemplate, 16, 10000, true, 60000));
+		assertThat(redisTemplate.hasKey("releases:lock:log")).isFalse();
+	}
+
+	@Test
+	public void testOperationsOnDifferentReleasesRunInParallel() throws Exception {
+		ReleaseLocks releaseLocks = new ReleaseLocks(redisTemplate, 1024, 10000, false, 60000);
+		CountDownLatch bothRunning = new CountDownLatch(2);
+		List<Future<Boolean>> results = new ArrayList<>();
+		for (String name : new String[] { "log", "time" }) {
+			results.add(executor.submit(() -> releaseLocks.doWithLock(name, () -> {
+				bothRunning.countDown();
+				return await(bothRunning);
+			})));
+		}
+		for (Future<Boolean> result : results) {
+			assertThat(result.get()).isTrue();
+		}
+	}
+
+	@Test
+	public void testAcquisitionTimesOut() throws Exception {
+		ReleaseLocks releaseLocks = new ReleaseLocks(redisTemplate, 16, 100, false, 60000);
+		CountDownLatch locked = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(1);
+		executor.submit(() -> releaseLocks.doWithLock("log", () -> {
+			locked.countDown();
+			return await(done);
+		}));
+		assertThat(locked.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThatThrownBy(() -> releaseLocks.doWithLock("log", () -> "never"))
+				.isInstanceOf(CannotAcquireLockException.class).hasMessageContaining("within 100 ms");
+		done.countDown();
+		assertThat(releaseLocks.metrics()).extracting(Metric::getName).contains("gilligan.locks.wait.max",
+				"gilligan.locks.queued");
+		assertThat(metric(releaseLocks, "gilligan.locks.timeouts")).isEqualTo(1);
+
+		// Nested calls for a held release do not wait for themselves
+		assertThat(releaseLocks.doWithLock("time", () -> releaseLocks.doWithLock("time", () -> "nested")))
+				.isEqualTo("nested");
+	}
+
+	@Test
+	public void testRedisLeaseRenewedWhileHeld() {
+		ReleaseLocks releaseLocks = new ReleaseLocks(redisTemplate, 16, 10000, true, 300);
+		Long remainingLease = releaseLocks.doWithLock("log", () -> {
+			sleep(1000);
+			return redisTemplate.getExpire("releases:lock:log", TimeUnit.MILLISECONDS);
+		});
+		assertThat(remainingLease).isGreaterThan(0);
+		assertThat(redisTemplate.hasKey("releases:lock:log")).isFalse();
+		assertThat(metric(releaseLocks, "gilligan.locks.lost")).isZero();
+		releaseLocks.shutdown();
+	}
+
+	@Test
+	public void testStripesValidated() {
+		assertThatThrownBy(() -> new ReleaseLocks(redisTemplate, 0, 10000, false, 60000))
+				.isInstanceOf(IllegalArgumentException.class).hasMessageContaining("gilligan.locks.stripes");
+	}
+
+	private void assertOperationsDoNotInterleave(ReleaseLocks releaseLocks) throws Exception {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		List<Future<Integer>> results = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			results.add(executor.submit(() -> releaseLocks.doWithLock("log", () -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				sleep(20);
+				return running.decrementAndGet();
+			})));
+		}
+		for (Future<Integer> result : results) {
+			result.get();
+		}
+		assertThat(maxRunning.get()).isEqualTo(1);
+		assertThat(metric(releaseLocks, "gilligan.locks.acquired")).isEqualTo(8);
+		assertThat(metric(releaseLocks, "gilligan.locks.wait.max")).isGreaterThan(0);
+	}
+
+
+	private static boolean await(CountDownLatch latch) {
+		try {
+			return latch.await(5, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import org.springframework.cloud.skipper.client.YamlUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author Mark Pollack
+ */
+public class SimpleTemplateEngineTests {
+
+	private final SimpleTemplateEngine simpleEngine = new SimpleTemplateEngine();
+
+	private final MustacheTemplateEngine mustacheEngine = new MustacheTemplateEngine();
+
+	@Test
+	public void testRendersLikeMustache() throws IOException {
+		Properties model = YamlUtils.getProperties(read("src/test/resources/ticktock/values.yml"));
+		assertSameOutput(read("src/test/resources/ticktock/charts/time/templates/time.yml"), model);
+		assertSameOutput(read("src/test/resources/ticktock/charts/log/templates/log.yml"), model);
+
+		model.setProperty("count", "2");
+		model.setProperty("markup", "<a href=\"x\">'&'</a> `=`");
+		assertSameOutput("count: {{ count }}\nescaped: {{markup}}\nraw: {{{markup}}} {{& markup}}\n{{count}}", model);
+		model.setProperty("markup", "&caf\u00e9 \u2603>");
+		assertSameOutput("{{markup}}", model);
+		assertSameOutput("", model);
+	}
+
+	@Test
+	public void testLongOutputRendersLikeMustache() {
+		Properties model = new Properties();
+		StringBuilder template = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			model.setProperty("key" + i, "<value " + i + ">");
+			template.append("key").append(i).append(": {{key").append(i).append("}}\n");
+		}
+		assertSameOutput(template.toString(), model);
+	}
+
+	@Test
+	public void testMissingValue() {
+		assertThatThrownBy(() -> simpleEngine.compile("a: 1\nb: {{b}}").execute(new Properties()))
+				.isInstanceOf(IllegalArgumentException.class).hasMessageContaining("'b' on line 2");
+	}
+
+	@Test
+	public void testOnlyVariablesSupported() {
+		for (String template : new String[] { "{{#enabled}}x{{/enabled}}", "{{^enabled}}x{{/enabled}}",
+				"{{> partial}}", "{{! comment }}", "{{=<% %>=}}", "{{}}", "{{count" }) {
+			assertThatThrownBy(() -> simpleEngine.compile(template)).isInstanceOf(IllegalArgumentException.class);
+		}
+	}
+
+	private void assertSameOutput(String template, Properties model) {
+		assertThat(simpleEngine.compile(template).execute(model))
+				.isEqualTo(mustacheEngine.compile(template).execute(model));
+	}
+
+	private String read(String path) throws IOException {
+		return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+	}
+}
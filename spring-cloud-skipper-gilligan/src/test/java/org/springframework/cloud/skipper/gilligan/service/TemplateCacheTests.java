@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import org.springframework.cloud.skipper.gilligan.util.ContentHashUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.springframework.cloud.skipper.gilligan.service.MetricsTestUtils.metric;
+
+/**
+ * @author Mark Pollack
+ */
+public class TemplateCacheTests {
+
+	@Test
+	public void testCompiledTemplateReused() {
+		TemplateCache templateCache = new TemplateCache(Arrays.asList(new MustacheTemplateEngine(),
+				new SimpleTemplateEngine()), 2);
+		TemplateEngine.CompiledTemplate template = templateCache.getTemplate(MustacheTemplateEngine.NAME,
+				"count: {{count}}");
+		assertThat(templateCache.getTemplate(MustacheTemplateEngine.NAME, new String("count: {{count}}")))
+				.isSameAs(template);
+		assertThat(template.execute(Collections.singletonMap("count", 2))).isEqualTo("count: 2");
+		assertThat(metric(templateCache, "gilligan.templates.cache.hits")).isEqualTo(1);
+		assertThat(metric(templateCache, "gilligan.templates.cache.misses")).isEqualTo(1);
+		assertThat(metric(templateCache, "gilligan.templates.cache.size")).isEqualTo(1);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedTemplateEvicted() {
+		TemplateCache templateCache = new TemplateCache(Arrays.asList(new MustacheTemplateEngine(),
+				new SimpleTemplateEngine()), 2);
+		TemplateEngine.CompiledTemplate first = templateCache.getTemplate(MustacheTemplateEngine.NAME, "first");
+		templateCache.getTemplate(MustacheTemplateEngine.NAME, "second");
+		templateCache.getTemplate(MustacheTemplateEngine.NAME, "first");
+		templateCache.getTemplate(MustacheTemplateEngine.NAME, "third");
+		assertThat(templateCache.getTemplate(MustacheTemplateEngine.NAME, "first")).isSameAs(first);
+		templateCache.getTemplate(MustacheTemplateEngine.NAME, "second");
+		assertThat(metric(templateCache, "gilligan.templates.cache.misses")).isEqualTo(4);
+		assertThat(metric(templateCache, "gilligan.templates.cache.size")).isEqualTo(2);
+	}
+
+	@Test
+	public void testTemplatesCachedPerEngine() {
+		TemplateCache templateCache = new TemplateCache(Arrays.asList(new MustacheTemplateEngine(),
+				new SimpleTemplateEngine()), 4);
+		assertThat(templateCache.getTemplate(SimpleTemplateEngine.NAME, "count: {{count}}"))
+				.isNotSameAs(templateCache.getTemplate(MustacheTemplateEngine.NAME, "count: {{count}}"))
+				.isSameAs(templateCache.getTemplate(SimpleTemplateEngine.NAME, "count: {{count}}"));
+		assertThat(templateCache.getTemplate(null, "count: {{count}}"))
+				.isSameAs(templateCache.getTemplate(MustacheTemplateEngine.NAME, "count: {{count}}"));
+		assertThat(templateCache.getTemplate(null, "count: {{count}}", ContentHashUtils.sha256Hex("count: {{count}}")))
+				.isSameAs(templateCache.getTemplate(MustacheTemplateEngine.NAME, "count: {{count}}"));
+		assertThatThrownBy(() -> templateCache.getTemplate("velocity", "count: $count"))
+				.isInstanceOf(IllegalArgumentException.class).hasMessageContaining("velocity");
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.service;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.cloud.skipper.gilligan.service.MetricsTestUtils.metric;
+
+/**
+ * @author Mark Pollack
+ */
+public class ValuesCacheTests {
+
+	@Test
+	public void testFlattenedValuesShared() {
+		ValuesCache valuesCache = new ValuesCache(4);
+		Map<String, Object> values = valuesCache.getValues("log:\n  level: DEBUG\ncount: 2\n");
+		assertThat(values).containsEntry("log.level", "DEBUG").containsEntry("count", 2);
+		assertThat(valuesCache.getValues(new String("log:\n  level: DEBUG\ncount: 2\n"))).isSameAs(values);
+		assertThat(valuesCache.getValues(null)).isEmpty();
+		assertThat(metric(valuesCache, "gilligan.values.cache.hits")).isEqualTo(1);
+		assertThat(metric(valuesCache, "gilligan.values.cache.misses")).isEqualTo(1);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testFlattenedValuesUnmodifiable() {
+		new ValuesCache(4).getValues("count: 2").put("count", 3);
+	}
+}
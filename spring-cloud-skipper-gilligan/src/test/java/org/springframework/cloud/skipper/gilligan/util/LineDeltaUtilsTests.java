@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.util;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Mark Pollack
+ */
+public class LineDeltaUtilsTests {
+
+	@Test
+	public void testRoundTrip() {
+		assertRoundTrip("a\nb\nc", "a\nb\nc");
+		assertRoundTrip("a\nb\nc", "a\nB\nc");
+		assertRoundTrip("a\nb\nc\n", "x\na\nc\ny\n");
+		assertRoundTrip("", "a\nb");
+		assertRoundTrip("a\nb", "");
+		assertRoundTrip("a\nb\nc\nd\ne", "e\nd\nc\nb\na");
+		assertRoundTrip("a\n\nb", "a\n\n\nb\n");
+	}
+
+	@Test
+	public void testDeltaTracksSizeOfChange() {
+		StringBuilder base = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			base.append("  property").append(i).append(": value").append(i).append('\n');
+		}
+		String target = base.toString().replace("value100\n", "changed\n").replace("value400\n", "changed\n");
+		String delta = LineDeltaUtils.diff(base.toString(), target);
+		assertThat(delta).isEqualTo("100,1,1\n  property100: changed\n400,1,1\n  property400: changed");
+		assertThat(LineDeltaUtils.apply(base.toString(), delta)).isEqualTo(target);
+		assertThat(LineDeltaUtils.diff(target, target)).isEmpty();
+	}
+
+	private void assertRoundTrip(String base, String target) {
+		assertThat(LineDeltaUtils.apply(base, LineDeltaUtils.diff(base, target))).isEqualTo(target);
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.skipper.gilligan.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+/**
+ * @author Mark Pollack
+ */
+public class YmlMergeUtilsTests {
+
+	private final Yaml yaml = new Yaml();
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testMergeSharesUnchangedValues() {
+		Map<String, Object> first = load("log:\n  level: INFO\n  format: json\ntime:\n  trigger: 1s\n"
+				+ "hosts: [a]\ncount: 1\n");
+		Map<String, Object> second = load("log:\n  level: DEBUG\nhosts: [b]\nmemory:\n  limit: 1g\n");
+		String firstDump = yaml.dump(first);
+		String secondDump = yaml.dump(second);
+
+		Map<String, Object> merged = YmlMergeUtils.merge(first, second);
+
+		assertThat(merged).isEqualTo(load("log:\n  level: DEBUG\n  format: json\ntime:\n  trigger: 1s\n"
+				+ "hosts: [a, b]\ncount: 1\nmemory:\n  limit: 1g\n"));
+		assertThat(merged.keySet()).containsExactly("log", "time", "hosts", "count", "memory");
+		assertThat(merged.get("time")).isSameAs(first.get("time"));
+		assertThat(merged.get("memory")).isSameAs(second.get("memory"));
+		assertThat(((Map<String, Object>) merged.get("log")).keySet()).containsExactly("level", "format");
+		assertThat(yaml.dump(first)).isEqualTo(firstDump);
+		assertThat(yaml.dump(second)).isEqualTo(secondDump);
+	}
+
+	@Test
+	public void testMergeReportsChanges() {
+		List<YmlMergeUtils.Change> changes = new ArrayList<>();
+		YmlMergeUtils.merge(load("log:\n  level: INFO\nhosts: [a]\n"),
+				load("log:\n  level: DEBUG\n  format: json\nhosts: [b]\n"), changes);
+		assertThat(changes).extracting("type", "path", "oldValue", "newValue").containsExactlyInAnyOrder(
+						tuple(YmlMergeUtils.Change.Type.OVERRIDDEN, "log.level", "INFO", "DEBUG"),
+						tuple(YmlMergeUtils.Change.Type.ADDED, "log.format", null, "json"),
+						tuple(YmlMergeUtils.Change.Type.APPENDED, "hosts", Collections.singletonList("a"),
+								Arrays.asList("a", "b")));
+	}
+
+	@Test
+	public void testMergeDeepDocuments() {
+		Map<String, Object> first = nested(100000, "value", "first");
+		Map<String, Object> second = nested(100000, "value", "second");
+		Map<String, Object> merged = YmlMergeUtils.merge(first, second);
+		Map<?, ?> leaf = merged;
+		for (int i = 0; i < 100000; i++) {
+			leaf = (Map<?, ?>) leaf.get("nested");
+		}
+		assertThat(leaf.get("value")).isEqualTo("second");
+	}
+
+	@Test
+	public void testMergeConflictingTypes() {
+		assertThatThrownBy(() -> YmlMergeUtils.merge(load("log: INFO\n"), load("log:\n  level: DEBUG\n")))
+				.isInstanceOf(IllegalArgumentException.class).hasMessageContaining("log");
+		assertThatThrownBy(() -> YmlMergeUtils.merge(load("hosts: a\n"), load("hosts: [b]\n")))
+				.isInstanceOf(IllegalArgumentException.class).hasMessageContaining("hosts");
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> load(String yamlString) {
+		return (Map<String, Object>) yaml.load(yamlString);
+	}
+
+	private Map<String, Object> nested(int depth, String key, Object value) {
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put(key, value);
+		for (int i = 0; i < depth; i++) {
+			Map<String, Object> parent = new LinkedHashMap<>();
+			parent.put("nested", map);
+			map = parent;
+		}
+		return map;
+	}
+}
@@ -34,14 +34,17 @@ public class HistoryCommand implements CommandMarker {
 
 	private final String maxHelp = "maximum length of the revision list returned";
 
+	private final String offsetHelp = "number of most recent revisions to skip";
+
 	@Autowired
 	private GilliganService gilliganService;
 
 	@CliCommand("skipper history")
 	public Table history(
 			@CliOption(key = { "", "releaseName" }, help = "Release name", mandatory = true) String releaseName,
-			@CliOption(key = "max", mandatory = false, help = maxHelp, unspecifiedDefaultValue = "0") int max) {
-		HistoryResponse historyRepsonse = gilliganService.history(releaseName, max);
+			@CliOption(key = "max", mandatory = false, help = maxHelp, unspecifiedDefaultValue = "0") int max,
+			@CliOption(key = "offset", mandatory = false, help = offsetHelp, unspecifiedDefaultValue = "0") int offset) {
+		HistoryResponse historyRepsonse = gilliganService.history(releaseName, max, offset);
 		return ReleaseTableUtils.format(historyRepsonse.getReleases());
 	}
 